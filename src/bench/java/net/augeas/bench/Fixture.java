@@ -0,0 +1,75 @@
+package net.augeas.bench;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+import net.augeas.Augeas;
+import net.augeas.RemoteAug;
+import net.augeas.jna.Aug;
+import net.augeas.jna.AugDirect;
+
+/**
+ * Generates the file system roots the benchmarks run against, so that the
+ * results do not depend on the contents of the host's /etc.
+ */
+final class Fixture {
+
+    private Fixture() {
+    }
+
+    /**
+     * Create a temporary root holding an etc/hosts file with HOSTS entries
+     */
+    static File createRoot(int hosts) throws IOException {
+        File root = File.createTempFile("augeas-bench", "");
+        if (!root.delete() || !new File(root, "etc").mkdirs()) {
+            throw new IOException("Can not create " + root);
+        }
+        Writer out = new FileWriter(new File(root, "etc/hosts"));
+        try {
+            out.write("127.0.0.1 localhost localhost.localdomain\n");
+            for (int i = 1; i < hosts; i++) {
+                out.write(String.format("10.%d.%d.%d host%d.example.com host%d%n",
+                        (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff, i, i));
+            }
+        } finally {
+            out.close();
+        }
+        return root;
+    }
+
+    static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    static Aug mapping(String name) {
+        if ("direct".equals(name)) {
+            return AugDirect.INSTANCE;
+        }
+        if ("remote".equals(name)) {
+            // The worker exits with the benchmark JVM
+            return new RemoteAug();
+        }
+        return Aug.INSTANCE;
+    }
+
+    /**
+     * Open a handle on ROOT which only knows about etc/hosts, and load it
+     */
+    static Augeas open(File root, int flags, Aug lib) {
+        Augeas aug = new Augeas(root.getPath(), null,
+                flags | Augeas.NO_MODL_AUTOLOAD | Augeas.NO_LOAD, lib);
+        aug.transform("Hosts.lns", "Hosts", Arrays.asList("/etc/hosts"), null);
+        aug.load();
+        return aug;
+    }
+}
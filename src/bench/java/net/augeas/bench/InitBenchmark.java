@@ -0,0 +1,68 @@
+package net.augeas.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.augeas.Augeas;
+import net.augeas.LoadPlan;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of creating (and closing) a handle with the default transforms,
+ * with and without loading the tree, and with a plan loading only
+ * etc/hosts.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class InitBenchmark {
+
+    private File root;
+    private final LoadPlan plan = new LoadPlan().lens("Hosts.lns", "/etc/hosts");
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Fixture.createRoot(100);
+    }
+
+    @TearDown
+    public void tearDown() {
+        Fixture.delete(root);
+    }
+
+    @Benchmark
+    public int init() {
+        Augeas aug = new Augeas(root.getPath(), null, Augeas.NONE);
+        aug.close();
+        return aug.getLastReturn();
+    }
+
+    @Benchmark
+    public int initNoLoad() {
+        Augeas aug = new Augeas(root.getPath(), null, Augeas.NO_LOAD);
+        aug.close();
+        return aug.getLastReturn();
+    }
+
+    @Benchmark
+    public int initPlan() {
+        Augeas aug = plan.open(root.getPath(), null, Augeas.NONE);
+        aug.close();
+        return aug.getLastReturn();
+    }
+}
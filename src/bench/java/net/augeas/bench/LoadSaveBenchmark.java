@@ -0,0 +1,70 @@
+package net.augeas.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.augeas.Augeas;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of reloading, as a whole tree or as a single file, and of saving
+ * (with SAVE_NOOP) a modified etc/hosts with a thousand entries. The tree is modified before each invocation,
+ * since neither call does any work on an unmodified tree.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class LoadSaveBenchmark {
+
+    private File root;
+    private Augeas aug;
+    private int counter;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Fixture.createRoot(1000);
+        aug = Fixture.open(root, Augeas.SAVE_NOOP, Fixture.mapping("proxy"));
+    }
+
+    @Setup(Level.Invocation)
+    public void modify() {
+        aug.set("/files/etc/hosts/500/canonical", "changed" + counter++);
+    }
+
+    @TearDown
+    public void tearDown() {
+        aug.close();
+        Fixture.delete(root);
+    }
+
+    @Benchmark
+    public int load() {
+        return aug.load();
+    }
+
+    @Benchmark
+    public int loadFile() {
+        return aug.loadFile("/etc/hosts");
+    }
+
+    @Benchmark
+    public int save() {
+        return aug.save();
+    }
+}
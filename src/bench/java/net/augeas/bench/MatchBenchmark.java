@@ -0,0 +1,68 @@
+package net.augeas.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.augeas.Augeas;
+import net.augeas.Batch;
+import net.augeas.MatchIterator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of match for growing nodesets, built in memory.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class MatchBenchmark {
+
+    @Param({ "1", "100", "10000" })
+    public int nodes;
+
+    private Augeas aug;
+
+    @Setup
+    public void setUp() {
+        aug = new Augeas("/dev/null", null, Augeas.NO_LOAD | Augeas.NO_MODL_AUTOLOAD);
+        Batch batch = aug.batch();
+        for (int i = 0; i < nodes; i++) {
+            batch.set("/bench/node[last()+1]", "value" + i);
+        }
+        batch.apply();
+    }
+
+    @TearDown
+    public void tearDown() {
+        aug.close();
+    }
+
+    @Benchmark
+    public List<String> match() {
+        return aug.match("/bench/node");
+    }
+
+    @Benchmark
+    public int matchViews() {
+        MatchIterator matches = aug.matchIterator("/bench/node");
+        int length = 0;
+        while (matches.hasNext()) {
+            length += matches.nextView().length();
+        }
+        return length;
+    }
+}
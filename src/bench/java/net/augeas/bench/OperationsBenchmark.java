@@ -0,0 +1,97 @@
+package net.augeas.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import net.augeas.Augeas;
+import net.augeas.SpanResult;
+import net.augeas.SpanTable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Per-call cost of the single node operations, for the interface and the
+ * direct mapping of the library and for a worker process reached over a
+ * socket, with and without reused native
+ * buffers for the strings passed in. spansOfFile reads the spans of all
+ * nodes of the file at once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class OperationsBenchmark {
+
+    private static final String NODE = "/files/etc/hosts/50/ipaddr";
+
+    @Param({ "proxy", "direct", "remote" })
+    public String mapping;
+
+    @Param({ "false", "true" })
+    public boolean reuseBuffers;
+
+    private File root;
+    private Augeas aug;
+
+    @Setup
+    public void setUp() throws IOException {
+        root = Fixture.createRoot(100);
+        aug = Fixture.open(root, Augeas.AUG_ENABLE_SPAN, Fixture.mapping(mapping));
+        aug.setReuseNativeBuffers(reuseBuffers);
+    }
+
+    @TearDown
+    public void tearDown() {
+        aug.close();
+        Fixture.delete(root);
+    }
+
+    @Benchmark
+    public String get() {
+        return aug.get(NODE);
+    }
+
+    @Benchmark
+    public boolean getValue() {
+        return aug.getValue(NODE).contentEquals("10.0.0.50");
+    }
+
+    @Benchmark
+    public boolean exists() {
+        return aug.exists(NODE);
+    }
+
+    @Benchmark
+    public int set() {
+        return aug.set(NODE, "10.0.0.50");
+    }
+
+    @Benchmark
+    public int setMany() {
+        return aug.setMany("/files/etc/hosts/*", "canonical", "host.example.com");
+    }
+
+    @Benchmark
+    public SpanResult span() {
+        return aug.span(NODE);
+    }
+
+    @Benchmark
+    public SpanTable spansOfFile() {
+        return aug.spans("/files/etc/hosts//*");
+    }
+}
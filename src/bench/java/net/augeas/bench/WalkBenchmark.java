@@ -0,0 +1,102 @@
+package net.augeas.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.augeas.Augeas;
+import net.augeas.Batch;
+import net.augeas.Cursor;
+
+/**
+ * Visiting every node of a tree built in memory, by matching child paths
+ * and by moving a cursor. A shape gives the number of children of each
+ * node, level by level; the wide one looks like a large
+ * <tt>/etc/hosts</tt>, whose walk cost grows with the square of the number
+ * of entries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class WalkBenchmark {
+
+    @Param({ "4x4", "4x4x4x4x4x4", "2000x3" })
+    public String shape;
+
+    private int[] fanouts;
+    private Augeas aug;
+
+    @Setup
+    public void setUp() {
+        String[] levels = shape.split("x");
+        fanouts = new int[levels.length];
+        for (int i = 0; i < levels.length; i++) {
+            fanouts[i] = Integer.parseInt(levels[i]);
+        }
+        aug = new Augeas("/dev/null", null, Augeas.NO_LOAD | Augeas.NO_MODL_AUTOLOAD);
+        Batch batch = aug.batch();
+        build(batch, "/bench", 0);
+        batch.apply();
+    }
+
+    private void build(Batch batch, String path, int level) {
+        if (level == fanouts.length) {
+            return;
+        }
+        for (int i = 1; i <= fanouts[level]; i++) {
+            String child = path + "/node[" + i + "]";
+            batch.set(child, "value" + i);
+            build(batch, child, level + 1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        aug.close();
+    }
+
+    @Benchmark
+    public int walkMatch() {
+        return walk("/bench");
+    }
+
+    private int walk(String path) {
+        int length = 0;
+        for (String child : aug.match(path + "/*")) {
+            length += aug.get(child).length() + walk(child);
+        }
+        return length;
+    }
+
+    @Benchmark
+    public int walkCursor() {
+        try (Cursor cursor = aug.cursor("/bench")) {
+            return walk(cursor);
+        }
+    }
+
+    private static int walk(Cursor cursor) {
+        int length = 0;
+        if (cursor.toFirstChild()) {
+            do {
+                length += cursor.getValue().length() + walk(cursor);
+            } while (cursor.toNextSibling());
+            cursor.toParent();
+        }
+        return length;
+    }
+}
@@ -0,0 +1,259 @@
+package net.augeas;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.augeas.jna.Aug;
+
+/**
+ * Asynchronous front end to an Augeas handle.
+ *
+ * The handle is created, used and closed on a dedicated platform thread
+ * owned by this object, so calls into the augeas library never block (or
+ * pin) the caller's thread, and one AsyncAugeas can be shared by any
+ * number of threads. Operations run in the order they were submitted; all
+ * operations that are queued when the worker wakes up are run back to back
+ * before it waits again.
+ *
+ * The returned futures are completed on the worker thread, and so are
+ * dependent stages that are not registered with one of the *Async
+ * methods. Such stages must not wait for other operations of the same
+ * AsyncAugeas.
+ */
+public class AsyncAugeas {
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    /**
+     * The most operations run in one go before the worker checks for
+     * termination
+     */
+    private static final int MAX_BATCH = 256;
+
+    private final BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+    private final Thread worker;
+    private volatile boolean closed;
+    private volatile boolean terminated;
+    private volatile RuntimeException initFailure;
+
+    /**
+     * Only accessed from the worker thread
+     */
+    private Augeas augeas;
+
+    /**
+     * Constructs a new Augeas connection on a new worker thread
+     * 
+     * @param root
+     *            or all file lookups
+     * @param loadpath
+     *            path for finding new schemas
+     * @param flags
+     *            any flags to use
+     */
+    public AsyncAugeas(String root, String loadpath, int flags) {
+        this(root, loadpath, flags, Aug.INSTANCE);
+    }
+
+    public AsyncAugeas(final String root, final String loadpath, final int flags, final Aug lib) {
+        // Initialize the handle as the first queued operation; if that
+        // fails, every later operation fails with the same exception
+        queue.add(() -> {
+            try {
+                augeas = new Augeas(root, loadpath, flags, lib);
+            } catch (RuntimeException e) {
+                initFailure = e;
+                closed = true;
+            }
+        });
+        worker = new Thread(this::work, "augeas-worker-" + COUNT.incrementAndGet());
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Run CALLBACK with the handle on the worker thread
+     * 
+     * @return a future completed with the result of the callback
+     */
+    public <T> CompletableFuture<T> submit(final AugeasCallback<T> callback) {
+        final CompletableFuture<T> result = new CompletableFuture<T>();
+        if (closed) {
+            result.completeExceptionally(new AugeasException("Augeas connection closed"));
+            return result;
+        }
+        queue.add(() -> {
+            if (result.isCancelled()) {
+                return;
+            }
+            try {
+                if (augeas == null) {
+                    throw new AugeasException("Augeas connection closed", initFailure);
+                }
+                result.complete(callback.call(augeas));
+            } catch (Throwable t) {
+                result.completeExceptionally(t);
+            }
+        });
+        if (terminated) {
+            failPending();
+        }
+        return result;
+    }
+
+    public CompletableFuture<Integer> clear(String path) {
+        return submit(aug -> aug.clear(path));
+    }
+
+    public CompletableFuture<Integer> defineNode(String name, String expr, String value) {
+        return submit(aug -> aug.defineNode(name, expr, value));
+    }
+
+    public CompletableFuture<Integer> defineVariable(String name, String expr) {
+        return submit(aug -> aug.defineVariable(name, expr));
+    }
+
+    public CompletableFuture<DumpResult> dump(String path) {
+        return submit(aug -> aug.dump(path));
+    }
+
+    public CompletableFuture<Boolean> exists(String path) {
+        return submit(aug -> aug.exists(path));
+    }
+
+    public CompletableFuture<String> get(String path) {
+        return submit(aug -> aug.get(path));
+    }
+
+    public CompletableFuture<Integer> insert(String path, String label, boolean before) {
+        return submit(aug -> aug.insert(path, label, before));
+    }
+
+    public CompletableFuture<Integer> load() {
+        return submit(Augeas::load);
+    }
+
+    public CompletableFuture<java.util.Set<String>> loadChanged() {
+        return submit(Augeas::loadChanged);
+    }
+
+    public CompletableFuture<List<String>> match(String path) {
+        return submit(aug -> aug.match(path));
+    }
+
+    public CompletableFuture<Integer> move(String source, String dest) {
+        return submit(aug -> aug.move(source, dest));
+    }
+
+    public CompletableFuture<Integer> rm(String path) {
+        return submit(aug -> aug.rm(path));
+    }
+
+    public CompletableFuture<Integer> save() {
+        return submit(Augeas::save);
+    }
+
+    public CompletableFuture<Integer> set(String path, String value) {
+        return submit(aug -> aug.set(path, value));
+    }
+
+    public CompletableFuture<Integer> setMany(String base, String sub, String value) {
+        return submit(aug -> aug.setMany(base, sub, value));
+    }
+
+    public CompletableFuture<AugeasSnapshot> snapshot(String path) {
+        return submit(aug -> aug.snapshot(path));
+    }
+
+    public CompletableFuture<SpanResult> span(String path) {
+        return submit(aug -> aug.span(path));
+    }
+
+    public CompletableFuture<Integer> transform(String lens, String name, List<String> incl, List<String> excl) {
+        return submit(aug -> aug.transform(lens, name, incl, excl));
+    }
+
+    /**
+     * Apply a batch built with <tt>batch()</tt> on the worker thread
+     */
+    public CompletableFuture<BatchResult> apply(Batch batch) {
+        return submit(batch::applyTo);
+    }
+
+    /**
+     * Start recording a batch; it is not tied to the handle until it is
+     * passed to <tt>apply</tt>
+     */
+    public Batch batch() {
+        return new Batch(null);
+    }
+
+    /**
+     * Close the handle once all operations submitted so far have run, and
+     * stop the worker thread. Operations submitted afterwards fail.
+     */
+    public CompletableFuture<Integer> close() {
+        CompletableFuture<Integer> result = submit(aug -> {
+            // Set here as well, so the worker sees it once this task has run
+            // even if the caller has not got back from submit yet
+            closed = true;
+            augeas = null;
+            aug.close();
+            return aug.getLastReturn();
+        });
+        closed = true;
+        return result;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * The worker thread
+     */
+    Thread getWorker() {
+        return worker;
+    }
+
+    private void work() {
+        List<Runnable> batch = new ArrayList<Runnable>();
+        try {
+            while (true) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Runnable task : batch) {
+                    task.run();
+                }
+                batch.clear();
+                if (closed && queue.isEmpty()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (augeas != null) {
+                augeas.close();
+                augeas = null;
+            }
+            terminated = true;
+            failPending();
+        }
+    }
+
+    /**
+     * Run the operations left in the queue once the worker has stopped;
+     * the handle is gone, so each of them fails its future.
+     */
+    private void failPending() {
+        Runnable task;
+        while ((task = queue.poll()) != null) {
+            task.run();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+package net.augeas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+import net.augeas.jna.Aug;
+import net.augeas.jna.AugDirect;
+import net.augeas.jna.AugPointer;
+
+/**
+ * The process behind {@link RemoteAug}. It listens on the Unix domain
+ * socket given as its first argument, prints a line once it does, and
+ * serves one connection until it is closed, then closes any handle left
+ * open and exits. A second argument of <tt>direct</tt> selects the direct
+ * mapping of the library.
+ */
+public final class AugWorker {
+
+    private final Aug lib;
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final Map<Integer, AugPointer> handles = new HashMap<Integer, AugPointer>();
+    private int nextId = 1;
+
+    // Reused for the out parameters of aug_span
+    private final PointerByReference pointer = new PointerByReference();
+    private final Memory positions = new Memory(6 * 4);
+
+    AugWorker(Aug lib, DataInputStream in, DataOutputStream out) {
+        this.lib = lib;
+        this.in = in;
+        this.out = out;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: AugWorker SOCKET [direct]");
+            System.exit(2);
+        }
+        run(args[0], args.length > 1 && "direct".equals(args[1]) ? AugDirect.INSTANCE : Aug.INSTANCE);
+    }
+
+    /**
+     * Listen on SOCKET and serve the first connection with LIB
+     */
+    static void run(String socket, Aug lib) throws IOException {
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            System.out.println("ready");
+            System.out.flush();
+            try (SocketChannel channel = server.accept()) {
+                Files.deleteIfExists(Paths.get(socket));
+                DataInputStream in = new DataInputStream(
+                        new BufferedInputStream(Channels.newInputStream(channel), 65536));
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(Channels.newOutputStream(channel), 65536));
+                new AugWorker(lib, in, out).serve();
+            }
+        }
+    }
+
+    void serve() throws IOException {
+        try {
+            while (true) {
+                int op = in.read();
+                if (op < 0) {
+                    break;
+                }
+                int id = in.readInt();
+                dispatch((byte) op, id);
+                // Flush once every request received so far has been run
+                if (in.available() == 0) {
+                    out.flush();
+                }
+            }
+        } catch (EOFException e) {
+            // the client went away in the middle of a request
+        } finally {
+            for (AugPointer aug : handles.values()) {
+                lib.aug_close(aug);
+            }
+            handles.clear();
+        }
+    }
+
+    private void dispatch(byte op, int id) throws IOException {
+        if (op == RemoteAug.INIT) {
+            String root = RemoteAug.readString(in);
+            String loadpath = RemoteAug.readString(in);
+            int flags = in.readInt();
+            AugPointer aug = lib.aug_init(root, loadpath, flags);
+            int handle = 0;
+            if (aug != null) {
+                handle = nextId++;
+                handles.put(handle, aug);
+            }
+            out.writeInt(handle);
+            return;
+        }
+        AugPointer aug = handles.get(id);
+        if (aug == null) {
+            throw new IOException("Unknown handle " + id);
+        }
+        switch (op) {
+        case RemoteAug.CLOSE:
+            handles.remove(id);
+            out.writeInt(lib.aug_close(aug));
+            break;
+        case RemoteAug.CP:
+            out.writeInt(lib.aug_cp(aug, RemoteAug.readString(in), RemoteAug.readString(in)));
+            break;
+        case RemoteAug.DEFNODE: {
+            IntByReference created = new IntByReference();
+            out.writeInt(lib.aug_defnode(aug, RemoteAug.readString(in), RemoteAug.readString(in),
+                    RemoteAug.readString(in), created));
+            out.writeInt(created.getValue());
+            break;
+        }
+        case RemoteAug.DEFVAR:
+            out.writeInt(lib.aug_defvar(aug, RemoteAug.readString(in), RemoteAug.readString(in)));
+            break;
+        case RemoteAug.ERROR:
+            out.writeInt(lib.aug_error(aug));
+            break;
+        case RemoteAug.ERROR_DETAILS:
+            RemoteAug.writeString(out, lib.aug_error_details(aug));
+            break;
+        case RemoteAug.ERROR_MESSAGE:
+            RemoteAug.writeString(out, lib.aug_error_message(aug));
+            break;
+        case RemoteAug.ERROR_MINOR_MESSAGE:
+            RemoteAug.writeString(out, lib.aug_error_minor_message(aug));
+            break;
+        case RemoteAug.GET: {
+            int ret = lib.aug_get(aug, string(RemoteAug.readBytes(in)), pointer);
+            out.writeInt(ret);
+            RemoteAug.writeBytes(out, ret == 1 ? RemoteAug.bytes(pointer.getValue()) : null);
+            break;
+        }
+        case RemoteAug.INSERT:
+            out.writeInt(lib.aug_insert(aug, RemoteAug.readString(in), RemoteAug.readString(in),
+                    in.readInt()));
+            break;
+        case RemoteAug.LOAD:
+            out.writeInt(lib.aug_load(aug));
+            break;
+        case RemoteAug.LOAD_FILE:
+            out.writeInt(lib.aug_load_file(aug, RemoteAug.readString(in)));
+            break;
+        case RemoteAug.MATCH:
+            match(aug);
+            break;
+        case RemoteAug.NS_ATTR:
+            nsAttr(aug);
+            break;
+        case RemoteAug.MV:
+            out.writeInt(lib.aug_mv(aug, RemoteAug.readString(in), RemoteAug.readString(in)));
+            break;
+        case RemoteAug.RM:
+            out.writeInt(lib.aug_rm(aug, RemoteAug.readString(in)));
+            break;
+        case RemoteAug.SAVE:
+            out.writeInt(lib.aug_save(aug));
+            break;
+        case RemoteAug.SET:
+            out.writeInt(lib.aug_set(aug, string(RemoteAug.readBytes(in)), string(RemoteAug.readBytes(in))));
+            break;
+        case RemoteAug.SETM:
+            out.writeInt(lib.aug_setm(aug, RemoteAug.readString(in), RemoteAug.readString(in),
+                    RemoteAug.readString(in)));
+            break;
+        case RemoteAug.SPAN:
+            span(aug);
+            break;
+        default:
+            throw new IOException("Unknown operation " + op);
+        }
+    }
+
+    private void match(AugPointer aug) throws IOException {
+        PointerByReference matches = new PointerByReference();
+        int ret = lib.aug_match(aug, string(RemoteAug.readBytes(in)), matches);
+        out.writeInt(ret);
+        Pointer array = matches.getValue();
+        if (array == null) {
+            return;
+        }
+        for (int i = 0; i < ret; i++) {
+            Pointer p = array.getPointer((long) i * Native.POINTER_SIZE);
+            RemoteAug.writeBytes(out, RemoteAug.bytes(p));
+            Native.free(Pointer.nativeValue(p));
+        }
+        Native.free(Pointer.nativeValue(array));
+    }
+
+    private void nsAttr(AugPointer aug) throws IOException {
+        String var = RemoteAug.readString(in);
+        int i = in.readInt();
+        int wanted = in.readByte();
+        PointerByReference value = (wanted & RemoteAug.NS_VALUE) != 0 ? new PointerByReference() : null;
+        PointerByReference label = (wanted & RemoteAug.NS_LABEL) != 0 ? new PointerByReference() : null;
+        PointerByReference file = (wanted & RemoteAug.NS_FILE) != 0 ? new PointerByReference() : null;
+        int ret = lib.aug_ns_attr(aug, var, i, value, label, file);
+        out.writeInt(ret);
+        if (value != null) {
+            RemoteAug.writeBytes(out, ret >= 0 ? RemoteAug.bytes(value.getValue()) : null);
+        }
+        if (label != null) {
+            RemoteAug.writeBytes(out, ret >= 0 ? RemoteAug.bytes(label.getValue()) : null);
+        }
+        if (file != null) {
+            Pointer p = ret >= 0 ? file.getValue() : null;
+            RemoteAug.writeBytes(out, RemoteAug.bytes(p));
+            if (p != null) {
+                Native.free(Pointer.nativeValue(p));
+            }
+        }
+    }
+
+    private void span(AugPointer aug) throws IOException {
+        pointer.setValue(null);
+        int ret = lib.aug_span(aug, string(RemoteAug.readBytes(in)), pointer, positions,
+                positions.share(4), positions.share(8), positions.share(12), positions.share(16),
+                positions.share(20));
+        out.writeInt(ret);
+        Pointer file = ret == 0 ? pointer.getValue() : null;
+        RemoteAug.writeBytes(out, RemoteAug.bytes(file));
+        if (file != null) {
+            Native.free(Pointer.nativeValue(file));
+        }
+        for (int i = 0; i < 6; i++) {
+            out.writeInt(ret == 0 ? positions.getInt(i * 4) : -1);
+        }
+    }
+
+    /**
+     * Copy BYTES into a NUL terminated native string for the Pointer
+     * variants of the mapping
+     */
+    private static Pointer string(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        Memory memory = new Memory(bytes.length + 1);
+        memory.write(0, bytes, 0, bytes.length);
+        memory.setByte(bytes.length, (byte) 0);
+        return memory;
+    }
+}
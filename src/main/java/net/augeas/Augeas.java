@@ -22,8 +22,17 @@
 
 package net.augeas;
 
+import java.io.File;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import net.augeas.jna.Aug;
 import net.augeas.jna.AugPointer;
@@ -40,10 +49,11 @@ import com.sun.jna.ptr.PointerByReference;
  * The constructor for this class allocates and initializes a new Augeas
  * handle; this handle holds memory that is not garbage collected. To
  * ensure that using this class does not leak memory, you must call
- * <tt>close</tt> on it. This is also done from a finalizer, but should be
- * done as soon as this object is no longer needed.
+ * <tt>close</tt> on it, e.g. with try-with-resources. A handle that becomes
+ * unreachable without being closed is released by a Cleaner, but only
+ * once the garbage collector notices it, which can be much later.
  */
-public class Augeas {
+public class Augeas implements AutoCloseable {
 
     /**
      * Flags to use
@@ -88,6 +98,48 @@ public class Augeas {
      */
     public static int AUG_ENABLE_SPAN = (1 << 7);
 
+    /**
+     * Variable used by dump to hold the nodes being read
+     */
+    private static final String DUMP_VAR = "__jaug_dump";
+
+    /**
+     * Variable used to count the nodes of the tree for the HandleTracker
+     */
+    private static final String SIZE_VAR = "__jaug_size";
+
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    /**
+     * Releases the native handle, either from close or from the Cleaner
+     * once the Augeas object is unreachable. It must not refer to the
+     * Augeas object.
+     */
+    private static final class Release implements Runnable {
+        private final Aug lib;
+        private final AugPointer aug;
+        private final boolean tracked;
+        private long nodes;
+        private boolean closing;
+        private int result;
+
+        Release(Aug lib, AugPointer aug, boolean tracked) {
+            this.lib = lib;
+            this.aug = aug;
+            this.tracked = tracked;
+        }
+
+        public void run() {
+            result = lib.aug_close(aug);
+            if (tracked) {
+                HandleTracker.getInstance().released(nodes, !closing);
+            }
+        }
+    }
+
+    private Release release;
+    private Cleaner.Cleanable cleanable;
+
     /**
      * Pointert to he active augeas instance.
      */
@@ -96,7 +148,7 @@ public class Augeas {
     /**
      * The augeas library handle
      */
-    protected Aug AugLib = Aug.INSTANCE;
+    protected Aug AugLib;
 
     /**
      * The result of the last augeas call.
@@ -108,6 +160,47 @@ public class Augeas {
      */
     protected boolean raiseExceptions = true;
 
+    /**
+     * Incremented whenever the tree is loaded or saved, to tell snapshots
+     * that they are stale.
+     */
+    private volatile int generation;
+
+    // Bumped by every call that may have modified the tree
+    private int modifications;
+
+    /**
+     * Variable bindings for frequently read expressions, null unless
+     * enabled
+     */
+    private ExpressionCache expressionCache;
+
+    /**
+     * Pass strings through per-thread native buffers
+     */
+    private boolean reuseNativeBuffers;
+
+    /**
+     * The active transaction, if any
+     */
+    private Transaction transaction;
+
+    /**
+     * Records changes for pendingChanges, null unless enabled
+     */
+    private ChangeTracker changeTracker;
+
+    /**
+     * The arguments of aug_init, for handles opened on the same root
+     */
+    private final String loadpath;
+    private final int flags;
+
+    /**
+     * The time taken by each lens of a timed LoadPlan
+     */
+    private Map<String, Long> loadTimings = Collections.emptyMap();
+
     /**
      * Default constructor that defaults to root and no load path
      */
@@ -135,7 +228,54 @@ public class Augeas {
      *            any flags to use
      */
     public Augeas(String root, String loadpath, int flags) {
+        this(root, loadpath, flags, Aug.INSTANCE);
+    }
+
+    /**
+     * Constructs a new Augeas connection on top of a specific mapping of
+     * the augeas library, e.g. <tt>AugDirect.INSTANCE</tt>
+     * 
+     * @param root
+     *            or all file lookups
+     * @param loadpath
+     *            path for finding new schemas
+     * @param flags
+     *            any flags to use
+     * @param lib
+     *            the augeas library handle
+     */
+    public Augeas(String root, String loadpath, int flags, Aug lib) {
+        AugLib = lib;
+        this.loadpath = loadpath;
+        this.flags = flags;
         aug = AugLib.aug_init(root, loadpath, flags);
+        if (aug != null) {
+            HandleTracker tracker = HandleTracker.getInstance();
+            release = new Release(AugLib, aug, tracker.isEnabled());
+            cleanable = CLEANER.register(this, release);
+            if (release.tracked) {
+                tracker.opened();
+                if ((flags & NO_LOAD) == 0) {
+                    trackTreeSize();
+                }
+            }
+        }
+    }
+
+    /**
+     * Count the nodes under /files for the HandleTracker; binding them to
+     * a variable counts them without copying any paths
+     */
+    private void trackTreeSize() {
+        if (release == null || !release.tracked) {
+            return;
+        }
+        int count = AugLib.aug_defvar(aug, SIZE_VAR, "/files//*");
+        AugLib.aug_defvar(aug, SIZE_VAR, null);
+        if (count >= 0) {
+            HandleTracker.getInstance().resized(count - release.nodes);
+            release.nodes = count;
+        }
     }
 
     protected void check() {
@@ -144,6 +284,159 @@ public class Augeas {
         }
     }
 
+    /**
+     * Start recording an undo log of all modifications made through this
+     * handle, so that they can be reverted without loading the tree again.
+     * The tree can not be loaded until the transaction is committed or
+     * rolled back.
+     * 
+     * @return the transaction
+     */
+    public Transaction beginTransaction() {
+        check();
+        checkNoTransaction("beginTransaction");
+        transaction = new Transaction(this);
+        return transaction;
+    }
+
+    /**
+     * The active transaction, null if there is none
+     */
+    public Transaction getTransaction() {
+        return transaction;
+    }
+
+    /**
+     * Start or stop recording the changes reported by
+     * <tt>pendingChanges</tt>. Only changes made after tracking starts are
+     * reported.
+     */
+    public void setTrackChanges(boolean value) {
+        check();
+        if (!value) {
+            changeTracker = null;
+        } else if (changeTracker == null) {
+            changeTracker = new ChangeTracker(this);
+        }
+    }
+
+    public boolean getTrackChanges() {
+        return changeTracker != null;
+    }
+
+    /**
+     * List the changes made through this handle since it was last saved or
+     * loaded, and the files <tt>save</tt> would write because of them,
+     * without serializing anything. Requires <tt>setTrackChanges</tt>.
+     * 
+     * @return the changes, oldest first
+     */
+    public PendingChanges pendingChanges() {
+        check();
+        if (changeTracker == null) {
+            throw new AugeasException("Change tracking is not enabled");
+        }
+        return changeTracker.snapshot();
+    }
+
+    /**
+     * The number of tracked changes, -1 if changes are not tracked
+     */
+    int changeCount() {
+        return changeTracker != null ? changeTracker.size() : -1;
+    }
+
+    /**
+     * Forget the tracked changes after the first COUNT, which have been
+     * rolled back
+     */
+    void truncateChanges(int count) {
+        if (changeTracker != null && count >= 0) {
+            changeTracker.truncate(count);
+        }
+    }
+
+    void endTransaction(Transaction ended) {
+        if (transaction == ended) {
+            transaction = null;
+        }
+    }
+
+    private void checkNoTransaction(String operation) {
+        if (transaction != null) {
+            throw new AugeasException(operation + " is not allowed during a transaction");
+        }
+    }
+
+    /**
+     * Start recording a batch of modifications which are applied to this
+     * handle with a single call to <tt>apply</tt>
+     * 
+     * @return an empty batch
+     */
+    public Batch batch() {
+        return new Batch(this);
+    }
+
+    BatchResult apply(Batch batch) {
+        check();
+        List<Batch.Operation> operations = batch.getOperations();
+        int size = operations.size();
+        int[] returns = new int[size];
+        String[] errors = new String[size];
+        int applied = 0;
+        lastReturn = 0;
+        while (applied < size) {
+            Batch.Operation op = operations.get(applied);
+            Set<String> files = null;
+            if (changeTracker != null) {
+                files = changeTracker.files(op.path);
+                if (op.type == Batch.MOVE) {
+                    files.addAll(changeTracker.files(op.arg1));
+                }
+            }
+            switch (op.type) {
+            case Batch.SET:
+                lastReturn = transaction != null ? transaction.recordSet(op.path, op.arg1)
+                        : AugLib.aug_set(aug, op.path, op.arg1);
+                break;
+            case Batch.SETM:
+                lastReturn = transaction != null ? transaction.recordSetm(op.path, op.arg1, op.arg2)
+                        : AugLib.aug_setm(aug, op.path, op.arg1, op.arg2);
+                break;
+            case Batch.RM:
+                lastReturn = transaction != null ? transaction.recordRm(op.path)
+                        : AugLib.aug_rm(aug, op.path);
+                break;
+            case Batch.INSERT:
+                lastReturn = transaction != null ? transaction.recordInsert(op.path, op.arg1, op.before ? 1 : 0)
+                        : AugLib.aug_insert(aug, op.path, op.arg1, op.before ? 1 : 0);
+                break;
+            case Batch.MOVE:
+                lastReturn = transaction != null ? transaction.recordMove(op.path, op.arg1)
+                        : AugLib.aug_mv(aug, op.path, op.arg1);
+                break;
+            default:
+                throw new IllegalStateException("Unknown operation " + op.type);
+            }
+            returns[applied++] = lastReturn;
+            if (files != null && lastReturn >= (op.type == Batch.RM || op.type == Batch.SETM ? 1 : 0)) {
+                String argument = op.type == Batch.SETM ? op.arg2 : op.arg1;
+                changeTracker.add(Batch.NAMES[op.type], op.path, argument, files);
+            }
+            if (lastReturn == -1) {
+                errors[applied - 1] = errorMessage(Batch.NAMES[op.type] + " failed");
+                if (batch.getStopOnFailure()) {
+                    break;
+                }
+            }
+        }
+        if (applied > 0) {
+            treeChanged();
+        }
+        return new BatchResult(returns, errors, applied);
+    }
+
     /**
      * Clear the PATH, i.e. set the value to null
      * 
@@ -169,19 +462,29 @@ public class Augeas {
      * After calling this method, you can not perform any more operations
      * on this object. You must call this method to ensure that the storage
      * held by the Augeas instance, which is not garbage collected, is
-     * released.
-     * 
-     * @return -1 on error, 0 on success
+     * released. Closing an already closed instance does nothing. The
+     * result of aug_close is available from <tt>getLastReturn</tt>.
      */
-    public int close() {
+    public void close() {
         if (aug != null) {
-            lastReturn = AugLib.aug_close(aug);
-            processLastCall("Close failed");
+            release.closing = true;
+            cleanable.clean();
+            lastReturn = release.result;
             aug = null;
+            expressionCache = null;
+            changeTracker = null;
+            if (transaction != null) {
+                transaction.abandon();
+                transaction = null;
+            }
+            generation++;
+            if (raiseExceptions && lastReturn == -1) {
+                // The handle is gone, so there is no error message to add
+                throw new AugeasException("Close failed");
+            }
         } else {
             lastReturn = 0;
         }
-        return lastReturn;
     }
 
     /**
@@ -194,7 +497,13 @@ public class Augeas {
     public int defineNode(String name, String expr, String value) {
         check();
         IntByReference created = new IntByReference();
-        lastReturn = AugLib.aug_defnode(aug, name, expr, value, created);
+        Set<String> files = changeTracker != null ? changeTracker.files(expr) : null;
+        lastReturn = transaction != null ? transaction.recordDefnode(name, expr, value, created)
+                : AugLib.aug_defnode(aug, name, expr, value, created);
+        if (files != null && lastReturn >= 0 && created.getValue() == 1) {
+            changeTracker.add("defineNode", expr, value, files);
+        }
+        treeChanged();
         processLastCall("defineNode failed");
         return created.getValue();
     }
@@ -209,19 +518,151 @@ public class Augeas {
     public int defineVariable(String name, String expr) {
         check();
         lastReturn = AugLib.aug_defvar(aug, name, expr);
+        if (expressionCache != null) {
+            expressionCache.invalidate();
+        }
         processLastCall("defineVariable failed");
         return lastReturn;
     }
 
+    /**
+     * Read every node under PATH, including the nodes matching PATH
+     * themselves. Rather than evaluating one path expression per node, the
+     * subtree is bound to a variable once and each node is then read by
+     * its index in that nodeset.
+     * 
+     * @return the path, label and value of each node in document order
+     */
+    public DumpResult dump(String path) {
+        check();
+        lastReturn = AugLib.aug_defvar(aug, DUMP_VAR, "(" + path + ")/descendant-or-self::*");
+        processLastCall("dump failed");
+        try {
+            List<String> paths = this.match("$" + DUMP_VAR);
+            int size = paths.size();
+            String[] labels = new String[size];
+            String[] values = new String[size];
+            PointerByReference value = new PointerByReference();
+            PointerByReference label = new PointerByReference();
+            for (int i = 0; i < size; i++) {
+                lastReturn = AugLib.aug_ns_attr(aug, DUMP_VAR, i, value, label, null);
+                processLastCall("dump failed");
+                labels[i] = label.getValue() != null ? label.getValue().getString(0) : null;
+                values[i] = value.getValue() != null ? value.getValue().getString(0) : null;
+            }
+            return new DumpResult(paths.toArray(new String[size]), labels, values);
+        } finally {
+            AugLib.aug_defvar(aug, DUMP_VAR, null);
+        }
+    }
+
+    /**
+     * Start binding frequently read path expressions to variables, see
+     * {@link ExpressionCache}. Any existing cache is replaced.
+     * 
+     * @param capacity
+     *            the number of expressions to remember
+     * @return the cache, which also reports hit rate statistics
+     */
+    public ExpressionCache enableExpressionCache(int capacity) {
+        check();
+        disableExpressionCache();
+        expressionCache = new ExpressionCache(this, capacity);
+        return expressionCache;
+    }
+
+    /**
+     * Stop caching expressions and undefine the cache's variables
+     */
+    public void disableExpressionCache() {
+        if (expressionCache != null) {
+            ExpressionCache cache = expressionCache;
+            expressionCache = null;
+            if (aug != null) {
+                cache.clear();
+            }
+        }
+    }
+
+    /**
+     * The expression cache, null unless enabled
+     */
+    public ExpressionCache getExpressionCache() {
+        return expressionCache;
+    }
+
+    /**
+     * Define (or, with a null EXPR, undefine) a variable for the
+     * expression cache, without raising exceptions
+     */
+    int bindVariable(String name, String expr) {
+        return AugLib.aug_defvar(aug, name, expr);
+    }
+
+    /**
+     * Match PATH without raising exceptions or touching lastReturn; used
+     * for bookkeeping around the public calls
+     */
+    List<String> nodes(String path) {
+        PointerByReference matches = new PointerByReference();
+        int count = AugLib.aug_match(aug, path, matches);
+        MatchIterator it = new MatchIterator(matches.getValue(), count);
+        List<String> list = new ArrayList<String>(Math.max(count, 0));
+        while (it.hasNext()) {
+            list.add(it.next());
+        }
+        return list;
+    }
+
+    /**
+     * Get the value at PATH, like <tt>nodes</tt> without side effects
+     */
+    String value(String path) {
+        String[] items = new String[1];
+        StringArray itemArray = new StringArray(items);
+        AugLib.aug_get(aug, path, itemArray);
+        return items[0];
+    }
+
+    /**
+     * Called after every call that may have modified the tree
+     */
+    void treeChanged() {
+        modifications++;
+        if (expressionCache != null) {
+            expressionCache.invalidate();
+        }
+    }
+
     /**
      * Returns true if the path exists
      * 
      * @return true if it exists
      */
     public boolean exists(String path) {
-        check();
-        lastReturn = AugLib.aug_get(aug, path, null);
+        boolean exists = tryExists(path);
         processLastCall("exists failed");
+        return exists;
+    }
+
+    /**
+     * Like <tt>exists</tt>, but never raises an exception: an invalid path
+     * simply does not exist. Meant for validating many paths that are
+     * expected to fail, where building error messages would cost more than
+     * the lookups. <tt>getLastReturn</tt> still tells the two apart.
+     * 
+     * @return true if PATH matches exactly one node
+     */
+    public boolean tryExists(String path) {
+        check();
+        if (expressionCache != null) {
+            path = expressionCache.resolve(path);
+        }
+        if (reuseNativeBuffers) {
+            lastReturn = AugLib.aug_get(aug, NativeBuffers.get().encode(0, path), null);
+        } else {
+            lastReturn = AugLib.aug_get(aug, path, null);
+        }
         return lastReturn == 1;
     }
 
@@ -232,6 +673,16 @@ public class Augeas {
      */
     public String get(String path) {
         check();
+        if (expressionCache != null) {
+            path = expressionCache.resolve(path);
+        }
+        if (reuseNativeBuffers) {
+            NativeBuffers buffers = NativeBuffers.get();
+            lastReturn = AugLib.aug_get(aug, buffers.encode(0, path), buffers.result);
+            processLastCall("get failed");
+            Pointer value = buffers.result.getValue();
+            return lastReturn == 1 && value != null ? value.getString(0) : null;
+        }
         String[] items = new String[1];
         StringArray itemArray = new StringArray(items);
         lastReturn = AugLib.aug_get(aug, path, itemArray);
@@ -239,6 +690,40 @@ public class Augeas {
         return items[0];
     }
 
+    /**
+     * Lookup the value associated with PATH without copying it out of the
+     * tree. The view refers to memory owned by the augeas library and is
+     * only valid until the tree is next modified or loaded.
+     * 
+     * @return a view of the value, null if there is no value
+     */
+    public Utf8Sequence getValue(String path) {
+        ByteBuffer bytes = getValueBytes(path);
+        return bytes != null ? new Utf8Sequence(bytes) : null;
+    }
+
+    /**
+     * Lookup the value associated with PATH as its bytes, in JNA's default
+     * string encoding and without a terminating NUL. Like <tt>getValue</tt>, the buffer is a view of the
+     * tree and only valid until the tree is next modified or loaded.
+     * 
+     * @return a read-only buffer, null if there is no value
+     */
+    public ByteBuffer getValueBytes(String path) {
+        check();
+        if (expressionCache != null) {
+            path = expressionCache.resolve(path);
+        }
+        NativeBuffers buffers = NativeBuffers.get();
+        lastReturn = AugLib.aug_get(aug, buffers.encode(0, path), buffers.result);
+        processLastCall("get failed");
+        Pointer value = buffers.result.getValue();
+        if (lastReturn != 1 || value == null) {
+            return null;
+        }
+        return value.getByteBuffer(0, value.indexOf(0, (byte) 0)).asReadOnlyBuffer();
+    }
+
     /**
      * Return the result from the last augeas call.
      * 
@@ -264,7 +749,13 @@ public class Augeas {
     public int insert(String path, String label, boolean before) {
         check();
         int intbefore = before ? 1 : 0;
-        lastReturn = AugLib.aug_insert(aug, path, label, intbefore);
+        Set<String> files = changeTracker != null ? changeTracker.files(path) : null;
+        lastReturn = transaction != null ? transaction.recordInsert(path, label, intbefore)
+                : AugLib.aug_insert(aug, path, label, intbefore);
+        if (files != null && lastReturn >= 0) {
+            changeTracker.add("insert", path, label, files);
+        }
+        treeChanged();
         processLastCall("insert failed");
         return lastReturn;
     }
@@ -277,6 +768,17 @@ public class Augeas {
         return AugeasErrorCode.forValue(AugLib.aug_error(aug));
     }
 
+    /**
+     * Returns the code, messages and details of the error from the last
+     * method call at once. Cheaper than calling <tt>lastError</tt> and the
+     * message getters separately, and only a single call into the library
+     * when there was no error.
+     */
+    public AugeasError getError() {
+        check();
+        return AugeasError.read(AugLib, aug);
+    }
+
     /**
      * Returns the error details from the last method call
      */
@@ -308,11 +810,140 @@ public class Augeas {
      */
     public int load() {
         check();
+        checkNoTransaction("load");
+        generation++;
         lastReturn = AugLib.aug_load(aug);
+        if (changeTracker != null) {
+            changeTracker.clear();
+        }
+        treeChanged();
         processLastCall("load failed");
+        trackTreeSize();
         return lastReturn;
     }
 
+    /**
+     * Reload only the files whose modification time on disk differs from
+     * the one recorded under <tt>/augeas/files</tt> when they were loaded.
+     * Unlike <tt>load</tt>, this does not evaluate the transforms, so files
+     * which did not exist at the last load are not picked up. If a loaded
+     * file has been removed, the whole tree is loaded again.
+     * 
+     * @return the files that changed, as paths below the root
+     */
+    public Set<String> loadChanged() {
+        check();
+        checkNoTransaction("loadChanged");
+        String root = get("/augeas/root");
+        // Only the nodes describing a file have both path and mtime; a
+        // directory called mtime is just another level above them
+        DumpResult mtimes = dump("/augeas/files//*[path][mtime]/mtime");
+        Set<String> changed = new LinkedHashSet<String>();
+        boolean removed = false;
+        for (int i = 0; i < mtimes.size(); i++) {
+            String path = mtimes.getPath(i);
+            String file = unescape(path.substring("/augeas/files".length(),
+                    path.length() - "/mtime".length()));
+            File disk = new File(root, file);
+            if (!disk.exists()) {
+                removed = true;
+                changed.add(file);
+            } else if (disk.lastModified() / 1000 != parseMtime(mtimes.getValue(i))) {
+                changed.add(file);
+            }
+        }
+        lastReturn = 0;
+        if (removed) {
+            load();
+        } else if (!changed.isEmpty()) {
+            loadFiles(changed);
+        }
+        return changed;
+    }
+
+    /**
+     * Load a single FILE, given as its path below the root such as
+     * <tt>/etc/hosts</tt>, with the transform under <tt>/augeas/load</tt>
+     * that includes it. Nothing else is parsed, so this is the cheapest way
+     * to get at one file from a handle created with NO_LOAD. A file that is
+     * already in the tree is reloaded.
+     * 
+     * @return -1 on error, for instance when no transform includes FILE,
+     *         0 on success
+     */
+    public int loadFile(String file) {
+        return loadFiles(Collections.singleton(file));
+    }
+
+    /**
+     * Load each of FILES as with <tt>loadFile</tt>
+     * 
+     * @return -1 if any file could not be loaded, 0 on success
+     */
+    public int loadFiles(Collection<String> files) {
+        check();
+        checkNoTransaction("loadFiles");
+        generation++;
+        treeChanged();
+        int ret = 0;
+        try {
+            for (String file : files) {
+                lastReturn = AugLib.aug_load_file(aug, file);
+                if (lastReturn < 0) {
+                    ret = -1;
+                }
+                processLastCall("load of " + file + " failed");
+            }
+        } finally {
+            if (changeTracker != null) {
+                changeTracker.reloaded(new HashSet<String>(files));
+            }
+            trackTreeSize();
+        }
+        lastReturn = ret;
+        return ret;
+    }
+
+    /**
+     * How long each lens took to load, in nanoseconds, keyed by transform
+     * name. Only filled in for handles opened with a {@link LoadPlan} that
+     * times its lenses.
+     */
+    public Map<String, Long> getLoadTimings() {
+        return loadTimings;
+    }
+
+    void setLoadTimings(Map<String, Long> timings) {
+        loadTimings = timings;
+    }
+
+    private static long parseMtime(String value) {
+        try {
+            return value != null ? Long.parseLong(value.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Remove the backslash escapes augeas adds to special characters in
+     * the paths it returns
+     */
+    static String unescape(String path) {
+        if (path.indexOf('\\') < 0) {
+            return path;
+        }
+        StringBuilder sb = new StringBuilder(path.length());
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '\\' && i + 1 < path.length()) {
+                c = path.charAt(++i);
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+
     /**
      * Return a list of the nodes which match the path string
      * 
@@ -320,22 +951,44 @@ public class Augeas {
      * @return
      */
     public List<String> match(String path) {
-        check();
-        PointerByReference ptrByR = new PointerByReference();
-        lastReturn = AugLib.aug_match(aug, path, ptrByR);
-        processLastCall("match failed");
-        Pointer ptr = ptrByR.getValue();
-        ArrayList<String> list = new ArrayList<String>();
-        for (int x = 0; x < lastReturn; x++) {
-            Pointer inner = ptr.getPointer(x * Native.POINTER_SIZE);
-            if (inner != null) {
-                String value = inner.getString(0);
+        MatchIterator matches = matchIterator(path);
+        ArrayList<String> list = new ArrayList<String>(matches.size());
+        while (matches.hasNext()) {
+            String value = matches.next();
+            if (value != null) {
                 list.add(value);
             }
         }
         return list;
     }
 
+    /**
+     * Iterate over the nodes which match the path string. Paths are decoded
+     * as they are requested and the native memory holding them is released
+     * once the iteration completes; call <tt>close</tt> on the iterator if
+     * it is not exhausted.
+     * 
+     * @param path
+     * @return an iterator over the matching paths
+     */
+    public MatchIterator matchIterator(String path) {
+        check();
+        if (expressionCache != null) {
+            path = expressionCache.resolve(path);
+        }
+        PointerByReference ptrByR;
+        if (reuseNativeBuffers) {
+            NativeBuffers buffers = NativeBuffers.get();
+            ptrByR = buffers.result;
+            lastReturn = AugLib.aug_match(aug, buffers.encode(0, path), ptrByR);
+        } else {
+            ptrByR = new PointerByReference();
+            lastReturn = AugLib.aug_match(aug, path, ptrByR);
+        }
+        processLastCall("match failed");
+        return new MatchIterator(ptrByR.getValue(), lastReturn);
+    }
+
     /**
      * Move the node SRC to DST.
      * 
@@ -343,7 +996,17 @@ public class Augeas {
      */
     public int move(String source, String dest) {
         check();
-        lastReturn = AugLib.aug_mv(aug, source, dest);
+        Set<String> files = null;
+        if (changeTracker != null) {
+            files = changeTracker.files(source);
+            files.addAll(changeTracker.files(dest));
+        }
+        lastReturn = transaction != null ? transaction.recordMove(source, dest)
+                : AugLib.aug_mv(aug, source, dest);
+        if (files != null && lastReturn >= 0) {
+            changeTracker.add("move", source, dest, files);
+        }
+        treeChanged();
         processLastCall("move failed");
         return lastReturn;
     }
@@ -354,12 +1017,25 @@ public class Augeas {
      */
     protected void processLastCall(String message) {
         if (raiseExceptions && lastReturn == -1) {
-            final String err = lastErrorMessage() != null ? (": " + lastErrorMessage()) : "";
-            final String details = lastErrorDetails() != null ? (": " + lastErrorDetails()) : "";
-            throw new AugeasException(message + err + details);
+            throw exception(message);
         }
     }
 
+    /**
+     * An exception for the last call, reading its error only once
+     */
+    AugeasException exception(String message) {
+        AugeasError error = AugeasError.read(AugLib, aug);
+        return new AugeasException(error.describe(message), error);
+    }
+
+    /**
+     * Append the error message and details of the last call to MESSAGE
+     */
+    String errorMessage(String message) {
+        return AugeasError.read(AugLib, aug).describe(message);
+    }
+
     /**
      * @see rm
      */
@@ -375,7 +1051,12 @@ public class Augeas {
      */
     public int rm(String path) {
         check();
-        lastReturn = AugLib.aug_rm(aug, path);
+        Set<String> files = changeTracker != null ? changeTracker.files(path) : null;
+        lastReturn = transaction != null ? transaction.recordRm(path) : AugLib.aug_rm(aug, path);
+        if (files != null && lastReturn > 0) {
+            changeTracker.add("rm", path, null, files);
+        }
+        treeChanged();
         processLastCall("rm failed");
         return lastReturn;
     }
@@ -387,11 +1068,127 @@ public class Augeas {
      */
     public int save() {
         check();
+        generation++;
         lastReturn = AugLib.aug_save(aug);
+        if (changeTracker != null && lastReturn >= 0) {
+            changeTracker.clear();
+        }
         processLastCall("save failed");
         return lastReturn;
     }
 
+    /**
+     * Write all pending changes to disk like <tt>save</tt>, but split the
+     * modified files into up to THREADS groups that are written
+     * concurrently, each by its own handle on the same root. The handles
+     * use the transforms and the save mode of this one. When files are
+     * overwritten (with or without backups), those that were written are
+     * then reloaded into this handle. With SAVE_NEWFILE the tree is left
+     * as it is, since the originals on disk did not change; unlike
+     * <tt>save</tt>, the tree is not marked clean, so a later save writes
+     * the new files again. In noop mode this is simply <tt>save</tt>.
+     * 
+     * The modified files are taken from <tt>pendingChanges</tt> when
+     * changes are tracked, and otherwise from a save in noop mode. Errors
+     * are recorded under <tt>/augeas/files</tt> as <tt>save</tt> does.
+     * 
+     * @return -1 on error, 0 on success
+     */
+    public int saveParallel(int threads) {
+        check();
+        checkNoTransaction("saveParallel");
+        if (threads < 1) {
+            throw new IllegalArgumentException("Thread count must be positive");
+        }
+        String mode = value("/augeas/save");
+        if ("noop".equals(mode)) {
+            return save();
+        }
+        generation++;
+        Set<String> files = modifiedFiles();
+        if (files == null) {
+            return lastReturn;
+        }
+        Map<String, String[]> errors = new ParallelSave(this, loadpath, flags).save(files, threads);
+
+        if ("newfile".equals(mode)) {
+            if (changeTracker != null && errors.isEmpty()) {
+                changeTracker.clear();
+            }
+        } else {
+            Set<String> saved = new LinkedHashSet<String>(files);
+            saved.removeAll(errors.keySet());
+            boolean raise = raiseExceptions;
+            raiseExceptions = false;
+            try {
+                loadFiles(saved);
+            } finally {
+                raiseExceptions = raise;
+            }
+        }
+        StringBuilder details = new StringBuilder();
+        for (Map.Entry<String, String[]> error : errors.entrySet()) {
+            String path = "/augeas/files" + ParallelSave.escape(error.getKey()) + "/error";
+            AugLib.aug_set(aug, path, error.getValue()[0]);
+            AugLib.aug_set(aug, path + "/message", error.getValue()[1]);
+            details.append(details.length() == 0 ? ": " : ", ").append(error.getKey()).append(" (")
+                    .append(error.getValue()[1] != null ? error.getValue()[1] : error.getValue()[0]).append(')');
+        }
+        lastReturn = errors.isEmpty() ? 0 : -1;
+        if (raiseExceptions && lastReturn == -1) {
+            throw new AugeasException("saveParallel failed" + details);
+        }
+        return lastReturn;
+    }
+
+    /**
+     * The files save would write, as paths below the root, or null if
+     * finding them failed
+     */
+    private Set<String> modifiedFiles() {
+        if (changeTracker != null) {
+            return changeTracker.snapshot().getFiles();
+        }
+        String mode = value("/augeas/save");
+        AugLib.aug_set(aug, "/augeas/save", "noop");
+        try {
+            lastReturn = AugLib.aug_save(aug);
+        } finally {
+            AugLib.aug_set(aug, "/augeas/save", mode);
+        }
+        processLastCall("saveParallel failed");
+        if (lastReturn < 0) {
+            return null;
+        }
+        Set<String> files = new LinkedHashSet<String>();
+        for (String event : nodes("/augeas/events/saved")) {
+            String file = value(event);
+            if (file != null && file.startsWith("/files/")) {
+                files.add(unescape(file.substring("/files".length())));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Copy the subtree under PATH into an immutable snapshot that can be
+     * read without further calls into the augeas library. The snapshot
+     * becomes stale once this handle is loaded or saved.
+     * 
+     * @return the snapshot
+     */
+    public AugeasSnapshot snapshot(String path) {
+        return new AugeasSnapshot(this, generation, path, dump(path));
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    int getModifications() {
+        return modifications;
+    }
+
     /**
      * Set the value associated with PATH to VALUE.
      * 
@@ -400,7 +1197,19 @@ public class Augeas {
      */
     public int set(String path, String value) {
         check();
-        lastReturn = AugLib.aug_set(aug, path, value);
+        Set<String> files = changeTracker != null ? changeTracker.files(path) : null;
+        if (transaction != null) {
+            lastReturn = transaction.recordSet(path, value);
+        } else if (reuseNativeBuffers) {
+            NativeBuffers buffers = NativeBuffers.get();
+            lastReturn = AugLib.aug_set(aug, buffers.encode(0, path), buffers.encode(1, value));
+        } else {
+            lastReturn = AugLib.aug_set(aug, path, value);
+        }
+        if (files != null && lastReturn >= 0) {
+            changeTracker.add("set", path, value, files);
+        }
+        treeChanged();
         processLastCall("set failed");
         return lastReturn;
     }
@@ -415,7 +1224,13 @@ public class Augeas {
      */
     public int setMany(String base, String sub, String value) {
         check();
-        lastReturn = AugLib.aug_setm(aug, base, sub, value);
+        Set<String> files = changeTracker != null ? changeTracker.files(base) : null;
+        lastReturn = transaction != null ? transaction.recordSetm(base, sub, value)
+                : AugLib.aug_setm(aug, base, sub, value);
+        if (files != null && lastReturn > 0) {
+            changeTracker.add("setMany", base, value, files);
+        }
+        treeChanged();
         processLastCall("setMany failed");
         return lastReturn;
     }
@@ -435,8 +1250,14 @@ public class Augeas {
 
         processLastCall("span failed");
 
+        // aug_span hands over a copy of the filename
+        String name = "";
+        if (filename.getValue() != null) {
+            name = filename.getValue().getString(0);
+            Native.free(Pointer.nativeValue(filename.getValue()));
+        }
         return new SpanResult(
-                filename.getValue() != null ? filename.getValue().getString(0) : "",
+                name,
                 labelStart.getValue(),
                 labelEnd.getValue(),
                 valueStart.getValue(),
@@ -446,6 +1267,68 @@ public class Augeas {
         );
     }
 
+    /**
+     * Encode the paths and values passed by <tt>get</tt>, <tt>exists</tt>,
+     * <tt>set</tt> and <tt>match</tt> into native buffers kept per thread,
+     * instead of letting JNA allocate a native copy of every string for
+     * every call. Off by default.
+     */
+    public void setReuseNativeBuffers(boolean value) {
+        reuseNativeBuffers = value;
+    }
+
+    public boolean getReuseNativeBuffers() {
+        return reuseNativeBuffers;
+    }
+
+    /**
+     * Open a cursor on the first node matching PATH, see {@link Cursor}.
+     * The other matches are its siblings at depth 0, in document order.
+     * The cursor must be closed to release the variables it defines.
+     * 
+     * @return the cursor, or null if nothing matches PATH
+     */
+    public Cursor cursor(String path) {
+        check();
+        if (expressionCache != null) {
+            path = expressionCache.resolve(path);
+        }
+        Cursor cursor = new Cursor(this);
+        lastReturn = cursor.open(path);
+        if (lastReturn <= 0) {
+            cursor.close();
+            processLastCall("cursor failed");
+            return null;
+        }
+        return cursor;
+    }
+
+    /**
+     * Get the spans of all nodes matching PATH in one pass. The paths
+     * returned by aug_match are handed back to aug_span without being
+     * copied, and the positions are collected in a compact table instead
+     * of one <tt>SpanResult</tt> per node. Requires AUG_ENABLE_SPAN.
+     * 
+     * @return the spans, in the order of <tt>match</tt>
+     */
+    public SpanTable spans(String path) {
+        check();
+        if (expressionCache != null) {
+            path = expressionCache.resolve(path);
+        }
+        PointerByReference matches = new PointerByReference();
+        lastReturn = AugLib.aug_match(aug, path, matches);
+        processLastCall("spans failed");
+        int count = Math.max(lastReturn, 0);
+        SpanTable table = SpanTable.read(this, matches.getValue(), count);
+        if (count > 0 && table.getMissingCount() == count) {
+            // Like span, fail when no node has span information
+            lastReturn = -1;
+            processLastCall("spans failed");
+        }
+        return table;
+    }
+
     /**
      * sets if exceptions should be raised
      */
@@ -476,24 +1359,20 @@ public class Augeas {
             name = lens.split("/.")[0].replace("@", "");
 
         String xfm = String.format("/augeas/load/%s/", name);
-        this.set(xfm + "lens", lens);
+        Batch batch = batch().stopOnFailure(true);
+        batch.set(xfm + "lens", lens);
         for (String inc : incl) {
-            this.set(xfm + "incl[last()+1]", inc);
+            batch.set(xfm + "incl[last()+1]", inc);
         }
         if (excl != null) {
             for (String ex : excl) {
-                this.set(xfm + "excl[last()+1]", ex);
+                batch.set(xfm + "excl[last()+1]", ex);
             }
         }
+        BatchResult result = batch.apply();
+        if (raiseExceptions && !result.isSuccess()) {
+            throw new AugeasException(result.getError(result.getFirstFailure()));
+        }
         return lastReturn;
     }
-
-	/* (non-Javadoc)
-	 * @see java.lang.Object#finalize()
-	 */
-	@Override
-	protected void finalize() throws Throwable {
-		this.close();
-		super.finalize();
-	}
 }
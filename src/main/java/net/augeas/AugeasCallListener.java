@@ -0,0 +1,22 @@
+package net.augeas;
+
+/**
+ * Receives a notification for every call into the augeas library made
+ * through an {@link InstrumentedAug}. Listeners are called on the thread
+ * that made the call and must be fast.
+ */
+public interface AugeasCallListener {
+
+    /**
+     * @param operation
+     *            the library function that was called
+     * @param nanos
+     *            how long the call took
+     * @param failed
+     *            true if the call returned -1
+     * @param error
+     *            the error code of a failed call, null if the call
+     *            succeeded or the code is unknown
+     */
+    void callCompleted(AugeasMetrics.Operation operation, long nanos, boolean failed, AugeasErrorCode error);
+}
@@ -0,0 +1,11 @@
+package net.augeas;
+
+/**
+ * A unit of work run against an Augeas handle that is lent to it, e.g.
+ * by {@link AugeasPool#withHandle}. The handle must not be used once the
+ * callback has returned.
+ */
+public interface AugeasCallback<T> {
+
+    T call(Augeas aug);
+}
@@ -0,0 +1,373 @@
+package net.augeas;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Structural comparison of two trees, for example a golden root and a
+ * live one, or the same handle before and after a change.
+ *
+ * Both sides are read as snapshots, one dump each, and every node gets a
+ * 64 bit fingerprint of its label, its value and the fingerprints of its
+ * children in order. Numbers are left out of the label, so that inserting
+ * a line at the top of a file does not change the fingerprint of every
+ * line after it. Subtrees with equal fingerprints are taken to be
+ * identical and skipped without looking at their children, so comparing
+ * mostly unchanged trees costs little beyond reading them. A snapshot
+ * keeps its fingerprints, so a golden snapshot compared against many
+ * hosts is only fingerprinted once.
+ *
+ * Siblings are paired first by fingerprint, then by label. Numbered
+ * entries, such as the lines of <tt>/etc/hosts</tt>, are paired by the
+ * fingerprint of their first child before their number, which lines them
+ * up by address rather than by position. Paired nodes whose
+ * values differ are CHANGED; paired siblings whose order changed are
+ * MOVED. Removed and added subtrees with equal fingerprints are reported
+ * as one MOVED change, anything else as REMOVED or ADDED with the root of
+ * the subtree only.
+ */
+public final class AugeasDiff {
+
+    public enum Kind {
+        ADDED, REMOVED, CHANGED, MOVED
+    }
+
+    /**
+     * One difference between the old and the new tree
+     */
+    public static final class Change {
+        private final Kind kind;
+        private final String oldPath;
+        private final String newPath;
+        private final String label;
+        private final String oldValue;
+        private final String newValue;
+
+        Change(Kind kind, String oldPath, String newPath, String label, String oldValue, String newValue) {
+            this.kind = kind;
+            this.oldPath = oldPath;
+            this.newPath = newPath;
+            this.label = label;
+            this.oldValue = oldValue;
+            this.newValue = newValue;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * The path in the old tree, null for ADDED
+         */
+        public String getOldPath() {
+            return oldPath;
+        }
+
+        /**
+         * The path in the new tree, null for REMOVED
+         */
+        public String getNewPath() {
+            return newPath;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getOldValue() {
+            return oldValue;
+        }
+
+        public String getNewValue() {
+            return newValue;
+        }
+
+        @Override
+        public String toString() {
+            switch (kind) {
+            case ADDED:
+                return "ADDED " + newPath + (newValue != null ? " = " + newValue : "");
+            case REMOVED:
+                return "REMOVED " + oldPath;
+            case CHANGED:
+                return "CHANGED " + newPath + ": " + oldValue + " -> " + newValue;
+            default:
+                return "MOVED " + oldPath + " -> " + newPath;
+            }
+        }
+    }
+
+    // Stands in for the label of numbered entries
+    private static final long SEQ = 0x2545f4914f6cdd1dL;
+
+    private final AugeasSnapshot a;
+    private final AugeasSnapshot b;
+    private final long[] fa;
+    private final long[] fb;
+    private final List<Change> changes = new ArrayList<Change>();
+    private final List<Integer> removed = new ArrayList<Integer>();
+    private final List<Integer> added = new ArrayList<Integer>();
+
+    private AugeasDiff(AugeasSnapshot a, AugeasSnapshot b) {
+        this.a = a;
+        this.b = b;
+        this.fa = a.fingerprints();
+        this.fb = b.fingerprints();
+    }
+
+    /**
+     * Compare the subtrees under PATH in two handles
+     *
+     * @return the changes that turn the tree of A into the tree of B
+     */
+    public static List<Change> compare(Augeas a, Augeas b, String path) {
+        return compare(a.snapshot(path), b.snapshot(path));
+    }
+
+    /**
+     * Compare two snapshots
+     *
+     * @return the changes that turn the tree of A into the tree of B
+     * @throws AugeasException
+     *             if either snapshot is stale
+     */
+    public static List<Change> compare(AugeasSnapshot a, AugeasSnapshot b) {
+        a.checkValid();
+        b.checkValid();
+        AugeasDiff diff = new AugeasDiff(a, b);
+        diff.siblings(a.topLevelNodes(), b.topLevelNodes());
+        diff.finish();
+        return Collections.unmodifiableList(diff.changes);
+    }
+
+    /**
+     * Compute the fingerprint of every node of SNAPSHOT. Children follow
+     * their parent in document order, so walking backwards sees every
+     * child before its parent.
+     */
+    static long[] fingerprint(AugeasSnapshot snapshot) {
+        long[] result = new long[snapshot.size()];
+        for (int node = result.length - 1; node >= 0; node--) {
+            String label = snapshot.labelAt(node);
+            long h = mix((seq(label) ? SEQ : hash(label)) * 31 + hash(snapshot.valueAt(node)));
+            for (int child : snapshot.childrenOf(node)) {
+                h = mix(h * 31 + result[child]);
+            }
+            result[node] = h;
+        }
+        return result;
+    }
+
+    private void node(int x, int y) {
+        if (fa[x] == fb[y]) {
+            return;
+        }
+        String oldValue = a.valueAt(x);
+        String newValue = b.valueAt(y);
+        if (!Objects.equals(oldValue, newValue)) {
+            changes.add(new Change(Kind.CHANGED, a.pathAt(x), b.pathAt(y), b.labelAt(y), oldValue, newValue));
+        }
+        siblings(a.childrenOf(x), b.childrenOf(y));
+    }
+
+    private void siblings(int[] as, int[] bs) {
+        int[] pair = new int[as.length];
+        Arrays.fill(pair, -1);
+        boolean[] taken = new boolean[bs.length];
+
+        // Identical subtrees
+        Map<Long, ArrayDeque<Integer>> byFingerprint = new HashMap<Long, ArrayDeque<Integer>>();
+        for (int j = 0; j < bs.length; j++) {
+            byFingerprint.computeIfAbsent(fb[bs[j]], k -> new ArrayDeque<Integer>()).add(j);
+        }
+        for (int i = 0; i < as.length; i++) {
+            ArrayDeque<Integer> candidates = byFingerprint.get(fa[as[i]]);
+            if (candidates != null && !candidates.isEmpty()) {
+                pair[i] = candidates.poll();
+                taken[pair[i]] = true;
+            }
+        }
+
+        // Nodes with a name pair by label. Numbered entries pair by their
+        // first child, and only then by number.
+        pairBy(as, bs, pair, taken, (snapshot, node) -> seq(snapshot.labelAt(node)) ? null : snapshot.labelAt(node));
+        pairBy(as, bs, pair, taken, (snapshot, node) -> {
+            int[] children = snapshot.childrenOf(node);
+            if (children.length == 0) {
+                return null;
+            }
+            long first = (snapshot == a ? fa : fb)[children[0]];
+            return seq(snapshot.labelAt(node)) ? first : snapshot.labelAt(node) + "\0" + first;
+        });
+        pairBy(as, bs, pair, taken, (snapshot, node) -> snapshot.labelAt(node));
+        reordered(as, bs, pair);
+
+        for (int i = 0; i < as.length; i++) {
+            if (pair[i] < 0) {
+                removed.add(as[i]);
+            }
+        }
+        for (int j = 0; j < bs.length; j++) {
+            if (!taken[j]) {
+                added.add(bs[j]);
+            }
+        }
+    }
+
+    private interface Key {
+        Object of(AugeasSnapshot snapshot, int node);
+    }
+
+    /**
+     * Pair the siblings left over with equal, non-null KEYs, in order, and
+     * compare each pair
+     */
+    private void pairBy(int[] as, int[] bs, int[] pair, boolean[] taken, Key key) {
+        Map<Object, ArrayDeque<Integer>> candidates = new HashMap<Object, ArrayDeque<Integer>>();
+        for (int j = 0; j < bs.length; j++) {
+            Object k = taken[j] ? null : key.of(b, bs[j]);
+            if (k != null) {
+                candidates.computeIfAbsent(k, x -> new ArrayDeque<Integer>()).add(j);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return;
+        }
+        for (int i = 0; i < as.length; i++) {
+            Object k = pair[i] < 0 ? key.of(a, as[i]) : null;
+            ArrayDeque<Integer> queue = k != null ? candidates.get(k) : null;
+            if (queue != null && !queue.isEmpty()) {
+                pair[i] = queue.poll();
+                taken[pair[i]] = true;
+                node(as[i], bs[pair[i]]);
+            }
+        }
+    }
+
+    /**
+     * Whether LABEL is the number of an entry in a sequence, as most
+     * lenses label the lines of a file
+     */
+    private static boolean seq(String label) {
+        if (label == null || label.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < label.length(); i++) {
+            if (label.charAt(i) < '0' || label.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Report paired siblings that changed their order: those outside a
+     * longest run of pairs whose positions increase on both sides
+     */
+    private void reordered(int[] as, int[] bs, int[] pair) {
+        int count = 0;
+        int[] matched = new int[as.length];
+        for (int i = 0; i < as.length; i++) {
+            if (pair[i] >= 0) {
+                matched[count++] = i;
+            }
+        }
+        if (count < 2) {
+            return;
+        }
+        // Patience sorting over the positions in BS
+        int[] tails = new int[count];
+        int[] previous = new int[count];
+        int length = 0;
+        for (int k = 0; k < count; k++) {
+            int position = pair[matched[k]];
+            int lo = 0;
+            int hi = length;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (pair[matched[tails[mid]]] < position) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            previous[k] = lo > 0 ? tails[lo - 1] : -1;
+            tails[lo] = k;
+            if (lo == length) {
+                length++;
+            }
+        }
+        if (length == count) {
+            return;
+        }
+        boolean[] inOrder = new boolean[count];
+        for (int k = tails[length - 1]; k >= 0; k = previous[k]) {
+            inOrder[k] = true;
+        }
+        for (int k = 0; k < count; k++) {
+            if (!inOrder[k]) {
+                int x = as[matched[k]];
+                int y = bs[pair[matched[k]]];
+                changes.add(new Change(Kind.MOVED, a.pathAt(x), b.pathAt(y), b.labelAt(y), null, null));
+            }
+        }
+    }
+
+    /**
+     * Turn removed and added subtrees that are identical into moves
+     */
+    private void finish() {
+        Map<Long, ArrayDeque<Integer>> addedByFingerprint = new HashMap<Long, ArrayDeque<Integer>>();
+        for (int y : added) {
+            addedByFingerprint.computeIfAbsent(fb[y], k -> new ArrayDeque<Integer>()).add(y);
+        }
+        Set<Integer> movedTo = new HashSet<Integer>();
+        List<Integer> gone = new ArrayList<Integer>();
+        for (int x : removed) {
+            ArrayDeque<Integer> candidates = addedByFingerprint.get(fa[x]);
+            if (candidates != null && !candidates.isEmpty()) {
+                int y = candidates.poll();
+                movedTo.add(y);
+                changes.add(new Change(Kind.MOVED, a.pathAt(x), b.pathAt(y), b.labelAt(y), null, null));
+            } else {
+                gone.add(x);
+            }
+        }
+        for (int x : gone) {
+            changes.add(new Change(Kind.REMOVED, a.pathAt(x), null, a.labelAt(x), a.valueAt(x), null));
+        }
+        for (int y : added) {
+            if (!movedTo.contains(y)) {
+                changes.add(new Change(Kind.ADDED, null, b.pathAt(y), b.labelAt(y), null, b.valueAt(y)));
+            }
+        }
+    }
+
+    private static long hash(String s) {
+        if (s == null) {
+            return 0x5bd1e995L;
+        }
+        // FNV-1a over the chars
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static long mix(long h) {
+        // The finalizer of splitmix64
+        h = (h ^ (h >>> 30)) * 0xbf58476d1ce4e5b9L;
+        h = (h ^ (h >>> 27)) * 0x94d049bb133111ebL;
+        return h ^ (h >>> 31);
+    }
+}
@@ -0,0 +1,77 @@
+package net.augeas;
+
+import net.augeas.jna.Aug;
+import net.augeas.jna.AugPointer;
+
+/**
+ * The error state of a handle after a call, read from the library in one
+ * go so that building a message does not query it again. Attached to the
+ * <tt>AugeasException</tt> raised for a failed call, or taken with
+ * {@link Augeas#getError()}.
+ */
+public final class AugeasError {
+
+    private final AugeasErrorCode code;
+    private final String message;
+    private final String minorMessage;
+    private final String details;
+
+    public AugeasError(AugeasErrorCode code, String message, String minorMessage, String details) {
+        this.code = code;
+        this.message = message;
+        this.minorMessage = minorMessage;
+        this.details = details;
+    }
+
+    /**
+     * Read the error of AUG. The messages are only fetched when there is
+     * an error, so a handle in a good state costs a single call.
+     */
+    static AugeasError read(Aug lib, AugPointer aug) {
+        int code = lib.aug_error(aug);
+        if (code == AugeasErrorCode.NO_ERROR.getValue()) {
+            return new AugeasError(AugeasErrorCode.NO_ERROR, null, null, null);
+        }
+        return new AugeasError(AugeasErrorCode.forValue(code), lib.aug_error_message(aug),
+                lib.aug_error_minor_message(aug), lib.aug_error_details(aug));
+    }
+
+    /**
+     * The error code, null if the library returned one this binding does
+     * not know
+     */
+    public AugeasErrorCode getCode() {
+        return code;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public String getMinorMessage() {
+        return minorMessage;
+    }
+
+    public String getDetails() {
+        return details;
+    }
+
+    public boolean isError() {
+        return code != AugeasErrorCode.NO_ERROR;
+    }
+
+    /**
+     * Append the message and details to PREFIX, the way exceptions are
+     * worded
+     */
+    String describe(String prefix) {
+        final String err = message != null ? (": " + message) : "";
+        final String det = details != null ? (": " + details) : "";
+        return prefix + err + det;
+    }
+
+    @Override
+    public String toString() {
+        return describe(String.valueOf(code)) + (minorMessage != null ? " (" + minorMessage + ")" : "");
+    }
+}
@@ -31,19 +31,49 @@ public class AugeasException extends RuntimeException {
      */
     private static final long serialVersionUID = -8429664126138352800L;
 
+    private final AugeasError error;
+
     public AugeasException() {
         super();
+        this.error = null;
     }
 
     public AugeasException(String message) {
         super(message);
+        this.error = null;
+    }
+
+    /**
+     * An exception for a failed library call, carrying the error state of
+     * the handle
+     */
+    public AugeasException(String message, AugeasError error) {
+        super(message);
+        this.error = error;
     }
 
     public AugeasException(String message, Throwable cause) {
         super(message, cause);
+        this.error = null;
     }
 
     public AugeasException(Throwable cause) {
         super(cause);
+        this.error = null;
+    }
+
+    /**
+     * The error reported by the library, null if the exception was not
+     * raised for a failed call
+     */
+    public AugeasError getError() {
+        return error;
+    }
+
+    /**
+     * The library's error code, null if there is none
+     */
+    public AugeasErrorCode getErrorCode() {
+        return error != null ? error.getCode() : null;
     }
 }
\ No newline at end of file
@@ -0,0 +1,211 @@
+package net.augeas;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.augeas.jna.Aug;
+
+/**
+ * Hands out handles that were initialized, and loaded, ahead of time.
+ *
+ * The augeas library has no way to share compiled modules between
+ * handles, so every aug_init pays for compiling them again. The factory
+ * moves that cost off the caller: a background thread keeps up to
+ * <tt>spares</tt> fresh handles ready, all created from the same
+ * template arguments, and {@link #take()} returns one of them
+ * immediately. Only when the spares run out does <tt>take</tt> create a
+ * handle on the calling thread. Handles are never reused; the caller
+ * owns and closes each one it takes.
+ *
+ * A spare may have waited a while since it was loaded, so <tt>take</tt>
+ * reloads the files that changed on disk in the meantime with
+ * {@link Augeas#loadChanged()}, which only parses those files again.
+ * Files created after the spare was loaded are not picked up.
+ *
+ * The first handle is created in the constructor, so that an invalid
+ * root, load path or plan fails there rather than in the background.
+ */
+public class AugeasFactory implements AutoCloseable {
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final String root;
+    private final String loadpath;
+    private final int flags;
+    private final Aug lib;
+    private final LoadPlan plan;
+    private final BlockingQueue<Augeas> ready;
+    private final Thread warmer;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile RuntimeException lastError;
+    private volatile boolean closed;
+
+    /**
+     * Create a factory keeping SPARES handles ready
+     *
+     * @param root
+     *            root for all file lookups
+     * @param loadpath
+     *            path for finding new schemas
+     * @param flags
+     *            flags for every handle
+     * @param spares
+     *            the number of handles to keep ready
+     */
+    public AugeasFactory(String root, String loadpath, int flags, int spares) {
+        this(null, root, loadpath, flags, Aug.INSTANCE, spares);
+    }
+
+    /**
+     * Create a factory using a specific mapping of the augeas library
+     */
+    public AugeasFactory(String root, String loadpath, int flags, Aug lib, int spares) {
+        this(null, root, loadpath, flags, lib, spares);
+    }
+
+    /**
+     * Create a factory whose handles are opened with PLAN, see
+     * {@link LoadPlan#open(String, String, int, Aug)}
+     */
+    public AugeasFactory(LoadPlan plan, String root, String loadpath, int flags, Aug lib, int spares) {
+        if (spares < 1) {
+            throw new IllegalArgumentException("Spares must be positive");
+        }
+        this.root = root;
+        this.loadpath = loadpath;
+        this.flags = flags;
+        this.lib = lib;
+        this.plan = plan;
+        this.ready = new ArrayBlockingQueue<Augeas>(spares);
+        ready.add(newHandle());
+        warmer = new Thread(this::warm, "augeas-factory-" + COUNT.incrementAndGet());
+        warmer.setDaemon(true);
+        warmer.start();
+    }
+
+    /**
+     * Initialize a handle from the template arguments. Runs on the
+     * background thread, and on the caller's when no spare is ready.
+     */
+    protected Augeas newHandle() {
+        Augeas aug = plan != null ? plan.open(root, loadpath, flags, lib)
+                : new Augeas(root, loadpath, flags, lib);
+        aug.check();
+        return aug;
+    }
+
+    /**
+     * Take a ready handle, or create one if none is
+     *
+     * @return a handle that the caller must close
+     */
+    public Augeas take() {
+        if (closed) {
+            throw new AugeasException("Augeas factory closed");
+        }
+        Augeas aug = ready.poll();
+        if (aug != null) {
+            hits.incrementAndGet();
+            try {
+                aug.loadChanged();
+            } catch (RuntimeException e) {
+                aug.close();
+                throw e;
+            }
+            return aug;
+        }
+        misses.incrementAndGet();
+        return newHandle();
+    }
+
+    /**
+     * The number of handles ready to be taken
+     */
+    public int getReadyCount() {
+        return ready.size();
+    }
+
+    /**
+     * The number of calls to <tt>take</tt> served by a ready handle
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * The number of calls to <tt>take</tt> that had to create a handle
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * The last error raised while creating a handle in the background,
+     * null if there was none
+     */
+    public RuntimeException getLastError() {
+        return lastError;
+    }
+
+    private void warm() {
+        while (!closed) {
+            Augeas aug;
+            try {
+                aug = newHandle();
+            } catch (RuntimeException e) {
+                lastError = e;
+                // Back off rather than spin on a template that keeps failing
+                if (!pause()) {
+                    return;
+                }
+                continue;
+            }
+            try {
+                ready.put(aug);
+            } catch (InterruptedException e) {
+                aug.close();
+                return;
+            }
+        }
+    }
+
+    private boolean pause() {
+        try {
+            TimeUnit.SECONDS.sleep(1);
+            return true;
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stop the background thread and close the handles that were not
+     * taken. Handles already taken stay open.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        warmer.interrupt();
+        boolean interrupted = false;
+        while (warmer.isAlive()) {
+            try {
+                warmer.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        Augeas aug;
+        while ((aug = ready.poll()) != null) {
+            aug.close();
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package net.augeas;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Call counts, latency histograms, failures and marshalled bytes for each
+ * function of the augeas library, collected by {@link InstrumentedAug}.
+ * One instance can be shared by several handles.
+ *
+ * Latencies are kept in power of two buckets of nanoseconds, so
+ * percentiles are reported as the upper bound of the bucket they fall in.
+ */
+public class AugeasMetrics implements AugeasMetricsMBean {
+
+    /**
+     * The instrumented functions of the augeas library
+     */
+    public enum Operation {
+        CLOSE("aug_close"),
+        CP("aug_cp"),
+        DEFNODE("aug_defnode"),
+        DEFVAR("aug_defvar"),
+        ERROR("aug_error"),
+        GET("aug_get"),
+        INIT("aug_init"),
+        INSERT("aug_insert"),
+        LOAD("aug_load"),
+        LOAD_FILE("aug_load_file"),
+        MATCH("aug_match"),
+        MV("aug_mv"),
+        NS_ATTR("aug_ns_attr"),
+        RM("aug_rm"),
+        SAVE("aug_save"),
+        SET("aug_set"),
+        SETM("aug_setm"),
+        SPAN("aug_span");
+
+        private final String functionName;
+
+        private Operation(String functionName) {
+            this.functionName = functionName;
+        }
+
+        public String getFunctionName() {
+            return functionName;
+        }
+
+        static Operation forName(String name) {
+            for (Operation op : values()) {
+                if (op.functionName.equals(name) || op.name().equals(name)) {
+                    return op;
+                }
+            }
+            throw new IllegalArgumentException("Unknown operation " + name);
+        }
+    }
+
+    private static final int BUCKETS = 64;
+    private static final int OPERATIONS = Operation.values().length;
+    private static final int ERRORS = AugeasErrorCode.values().length + 1;
+
+    private final AtomicLongArray calls = new AtomicLongArray(OPERATIONS);
+    private final AtomicLongArray nanos = new AtomicLongArray(OPERATIONS);
+    private final AtomicLongArray histogram = new AtomicLongArray(OPERATIONS * BUCKETS);
+    private final AtomicLongArray failures = new AtomicLongArray(OPERATIONS * ERRORS);
+    private final AtomicLong bytes = new AtomicLong();
+    private final List<AugeasCallListener> listeners = new CopyOnWriteArrayList<AugeasCallListener>();
+    private ObjectName objectName;
+
+    void record(Operation op, long elapsed, boolean failed, AugeasErrorCode error) {
+        int index = op.ordinal();
+        calls.incrementAndGet(index);
+        nanos.addAndGet(index, elapsed);
+        histogram.incrementAndGet(index * BUCKETS + bucket(elapsed));
+        if (failed) {
+            failures.incrementAndGet(index * ERRORS + errorIndex(error));
+        }
+        if (!listeners.isEmpty()) {
+            for (AugeasCallListener listener : listeners) {
+                listener.callCompleted(op, elapsed, failed, error);
+            }
+        }
+    }
+
+    void addBytes(long count) {
+        bytes.addAndGet(count);
+    }
+
+    public void addListener(AugeasCallListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(AugeasCallListener listener) {
+        listeners.remove(listener);
+    }
+
+    public long getCallCount(Operation op) {
+        return calls.get(op.ordinal());
+    }
+
+    public long getTotalNanos(Operation op) {
+        return nanos.get(op.ordinal());
+    }
+
+    public long getFailureCount(Operation op) {
+        long count = 0;
+        for (int i = 0; i < ERRORS; i++) {
+            count += failures.get(op.ordinal() * ERRORS + i);
+        }
+        return count;
+    }
+
+    /**
+     * The number of failed calls of OP with the given error code; a null
+     * code counts failures for which the library reported no known code
+     */
+    public long getFailureCount(Operation op, AugeasErrorCode error) {
+        return failures.get(op.ordinal() * ERRORS + errorIndex(error));
+    }
+
+    public double getMeanLatencyNanos(Operation op) {
+        long count = getCallCount(op);
+        return count == 0 ? 0 : (double) getTotalNanos(op) / count;
+    }
+
+    /**
+     * The latency below which PERCENTILE (between 0 and 100) of the calls
+     * of OP completed, rounded up to a power of two
+     */
+    public long getLatencyPercentileNanos(Operation op, double percentile) {
+        long count = getCallCount(op);
+        if (count == 0) {
+            return 0;
+        }
+        long target = (long) Math.ceil(count * percentile / 100.0);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += histogram.get(op.ordinal() * BUCKETS + b);
+            if (seen >= target) {
+                return b == 0 ? 0 : (b >= 63 ? Long.MAX_VALUE : 1L << b);
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public String[] getOperationNames() {
+        Operation[] ops = Operation.values();
+        String[] names = new String[ops.length];
+        for (int i = 0; i < ops.length; i++) {
+            names[i] = ops[i].getFunctionName();
+        }
+        return names;
+    }
+
+    public long getTotalCalls() {
+        long total = 0;
+        for (int i = 0; i < OPERATIONS; i++) {
+            total += calls.get(i);
+        }
+        return total;
+    }
+
+    public long getTotalFailures() {
+        long total = 0;
+        for (int i = 0; i < failures.length(); i++) {
+            total += failures.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * The approximate number of bytes of strings passed to and returned
+     * from the library
+     */
+    public long getBytesMarshalled() {
+        return bytes.get();
+    }
+
+    public long getCallCount(String operation) {
+        return getCallCount(Operation.forName(operation));
+    }
+
+    public long getFailureCount(String operation) {
+        return getFailureCount(Operation.forName(operation));
+    }
+
+    public long getFailureCount(String operation, String errorCode) {
+        return getFailureCount(Operation.forName(operation), AugeasErrorCode.valueOf(errorCode));
+    }
+
+    public double getMeanLatencyNanos(String operation) {
+        return getMeanLatencyNanos(Operation.forName(operation));
+    }
+
+    public long getLatencyPercentileNanos(String operation, double percentile) {
+        return getLatencyPercentileNanos(Operation.forName(operation), percentile);
+    }
+
+    public void reset() {
+        for (int i = 0; i < OPERATIONS; i++) {
+            calls.set(i, 0);
+            nanos.set(i, 0);
+        }
+        for (int i = 0; i < histogram.length(); i++) {
+            histogram.set(i, 0);
+        }
+        for (int i = 0; i < failures.length(); i++) {
+            failures.set(i, 0);
+        }
+        bytes.set(0);
+    }
+
+    /**
+     * Register these metrics with the platform MBean server as
+     * <tt>net.augeas:type=AugeasMetrics,name=NAME</tt>
+     */
+    public synchronized void register(String name) {
+        try {
+            ObjectName on = new ObjectName("net.augeas:type=AugeasMetrics,name=" + ObjectName.quote(name));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+            objectName = on;
+        } catch (JMException e) {
+            throw new AugeasException("Could not register metrics MBean", e);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (objectName == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName);
+        } catch (JMException e) {
+            throw new AugeasException("Could not unregister metrics MBean", e);
+        } finally {
+            objectName = null;
+        }
+    }
+
+    private static int bucket(long elapsed) {
+        if (elapsed <= 0) {
+            return 0;
+        }
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(elapsed));
+    }
+
+    private static int errorIndex(AugeasErrorCode error) {
+        return error == null ? ERRORS - 1 : error.ordinal();
+    }
+}
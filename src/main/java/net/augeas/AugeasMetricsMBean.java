@@ -0,0 +1,28 @@
+package net.augeas;
+
+/**
+ * JMX view of {@link AugeasMetrics}. Operations are identified by the name
+ * of the library function, e.g. <tt>aug_get</tt>.
+ */
+public interface AugeasMetricsMBean {
+
+    String[] getOperationNames();
+
+    long getTotalCalls();
+
+    long getTotalFailures();
+
+    long getBytesMarshalled();
+
+    long getCallCount(String operation);
+
+    long getFailureCount(String operation);
+
+    long getFailureCount(String operation, String errorCode);
+
+    double getMeanLatencyNanos(String operation);
+
+    long getLatencyPercentileNanos(String operation, double percentile);
+
+    void reset();
+}
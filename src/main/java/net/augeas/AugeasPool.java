@@ -0,0 +1,379 @@
+package net.augeas;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.augeas.jna.Aug;
+
+/**
+ * A fixed size pool of Augeas handles which all share the same root, load
+ * path and flags.
+ *
+ * A single Augeas handle must not be used by several threads at once. The
+ * pool initializes (and, unless NO_LOAD is given, loads) all of its handles
+ * up front and lends each one to a single thread at a time, so that
+ * concurrent readers neither serialize on one handle nor pay for
+ * <tt>aug_init</tt> on every request.
+ *
+ * When a handle is returned it is reset: an open transaction is rolled
+ * back, the expression cache, change tracking and native buffer reuse are
+ * turned off, raiseExceptions is restored, all variables are undefined,
+ * nodes created outside of <tt>/files</tt> and <tt>/augeas</tt> are removed
+ * and the tree is reloaded, which discards unsaved changes. With NO_LOAD
+ * everything under <tt>/files</tt> is removed instead. A handle whose
+ * settings under <tt>/augeas</tt> were changed, or which can not be reset
+ * for another reason, is closed and replaced. If the replacement can not
+ * be created either, the slot stays empty until a later <tt>borrow</tt>
+ * creates its handle.
+ */
+public class AugeasPool implements AutoCloseable {
+
+    /**
+     * The settings of a handle, everything under /augeas that is not
+     * bookkeeping of loaded files or events
+     */
+    private static final String SETTINGS =
+            "/augeas/*[label() != 'files' and label() != 'events']";
+
+    private final String root;
+    private final String loadpath;
+    private final int flags;
+    private final Aug lib;
+    private final int size;
+
+    private final BlockingQueue<Augeas> idle;
+    private DumpResult settings;
+    private final Map<Augeas, Long> borrowed =
+            Collections.synchronizedMap(new IdentityHashMap<Augeas, Long>());
+    private volatile boolean closed;
+
+    private final long created = System.nanoTime();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong resets = new AtomicLong();
+    private final AtomicInteger replaced = new AtomicInteger();
+    // Slots whose handle could not be replaced; borrow fills them
+    private final AtomicInteger empty = new AtomicInteger();
+
+    /**
+     * Create a pool of SIZE handles
+     * 
+     * @param size
+     *            the number of handles
+     * @param root
+     *            or all file lookups
+     * @param loadpath
+     *            path for finding new schemas
+     * @param flags
+     *            any flags to use
+     */
+    public AugeasPool(int size, String root, String loadpath, int flags) {
+        this(size, root, loadpath, flags, Aug.INSTANCE);
+    }
+
+    /**
+     * Create a pool of SIZE handles using a specific mapping of the augeas
+     * library
+     */
+    public AugeasPool(int size, String root, String loadpath, int flags, Aug lib) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Pool size must be positive");
+        }
+        this.size = size;
+        this.root = root;
+        this.loadpath = loadpath;
+        this.flags = flags;
+        this.lib = lib;
+        this.idle = new ArrayBlockingQueue<Augeas>(size);
+        try {
+            for (int i = 0; i < size; i++) {
+                idle.add(newHandle());
+            }
+            settings = idle.peek().dump(SETTINGS);
+        } catch (RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    protected Augeas newHandle() {
+        return new Augeas(root, loadpath, flags, lib);
+    }
+
+    /**
+     * Take a handle out of the pool, waiting at most TIMEOUT for one to
+     * become available. The handle must be given back with
+     * <tt>release</tt>.
+     * 
+     * @throws AugeasException
+     *             if no handle became available in time
+     */
+    public Augeas borrow(long timeout, TimeUnit unit) {
+        checkOpen();
+        long start = System.nanoTime();
+        Augeas aug = idle.poll();
+        if (aug == null) {
+            aug = fillEmptySlot();
+        }
+        try {
+            if (aug == null) {
+                aug = idle.poll(timeout, unit);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AugeasException("Interrupted while waiting for an Augeas handle", e);
+        }
+        long now = System.nanoTime();
+        recordWait(now - start);
+        if (aug == null) {
+            timeouts.incrementAndGet();
+            throw new AugeasException("Timed out waiting for an Augeas handle");
+        }
+        if (closed) {
+            aug.close();
+            throw new AugeasException("Augeas pool closed");
+        }
+        borrows.incrementAndGet();
+        borrowed.put(aug, now);
+        return aug;
+    }
+
+    /**
+     * Reset a handle obtained from <tt>borrow</tt> and make it available
+     * again.
+     */
+    public void release(Augeas aug) {
+        Long since = borrowed.remove(aug);
+        if (since == null) {
+            throw new AugeasException("Handle was not borrowed from this pool");
+        }
+        busyNanos.addAndGet(System.nanoTime() - since);
+        if (closed) {
+            aug.close();
+            return;
+        }
+        try {
+            reset(aug);
+        } catch (AugeasException e) {
+            aug.close();
+            replaced.incrementAndGet();
+            try {
+                aug = newHandle();
+            } catch (RuntimeException f) {
+                empty.incrementAndGet();
+                return;
+            }
+        }
+        idle.add(aug);
+    }
+
+    /**
+     * Create the handle for a slot left empty by a failed replacement
+     *
+     * @return the new handle, or null if no slot is empty
+     */
+    private Augeas fillEmptySlot() {
+        for (int n = empty.get(); n > 0; n = empty.get()) {
+            if (empty.compareAndSet(n, n - 1)) {
+                try {
+                    return newHandle();
+                } catch (RuntimeException e) {
+                    empty.incrementAndGet();
+                    throw e;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Run CALLBACK with a handle from the pool and return its result. The
+     * handle is released afterwards, also when the callback fails.
+     */
+    public <T> T withHandle(AugeasCallback<T> callback, long timeout, TimeUnit unit) {
+        Augeas aug = borrow(timeout, unit);
+        try {
+            return callback.call(aug);
+        } finally {
+            release(aug);
+        }
+    }
+
+    protected void reset(Augeas aug) {
+        Transaction transaction = aug.getTransaction();
+        if (transaction != null) {
+            transaction.close();
+        }
+        aug.disableExpressionCache();
+        aug.setTrackChanges(false);
+        aug.setReuseNativeBuffers(false);
+        aug.setRaiseExceptions(true);
+        for (String path : aug.match("/augeas/variables/*")) {
+            aug.defineVariable(path.substring(path.lastIndexOf('/') + 1), null);
+        }
+        aug.rm("/*[label() != 'augeas' and label() != 'files']");
+        // Restoring the save mode, load transforms and the like by hand
+        // would not undo their effect on the loaded tree
+        if (!settings.equals(aug.dump(SETTINGS))) {
+            throw new AugeasException("Augeas settings were changed");
+        }
+        if ((flags & Augeas.NO_LOAD) == 0) {
+            aug.load();
+        } else {
+            aug.rm("/files/*");
+            aug.rm("/augeas/files/*");
+        }
+        resets.incrementAndGet();
+    }
+
+    /**
+     * Close all idle handles; handles still borrowed are closed when they
+     * are released.
+     */
+    public void close() {
+        closed = true;
+        Augeas aug;
+        while ((aug = idle.poll()) != null) {
+            aug.close();
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    public Statistics getStatistics() {
+        long busy = busyNanos.get();
+        long now = System.nanoTime();
+        synchronized (borrowed) {
+            for (Long since : borrowed.values()) {
+                busy += now - since;
+            }
+        }
+        double elapsed = (double) (now - created) * size;
+        return new Statistics(size, borrowed.size(), borrows.get(), timeouts.get(),
+                waitNanos.get(), maxWaitNanos.get(), resets.get(), replaced.get(),
+                elapsed > 0 ? busy / elapsed : 0);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new AugeasException("Augeas pool closed");
+        }
+    }
+
+    private void recordWait(long nanos) {
+        waitNanos.addAndGet(nanos);
+        long max = maxWaitNanos.get();
+        while (nanos > max && !maxWaitNanos.compareAndSet(max, nanos)) {
+            max = maxWaitNanos.get();
+        }
+    }
+
+    /**
+     * Point in time view of the pool's usage.
+     */
+    public static final class Statistics {
+        private final int size;
+        private final int inUse;
+        private final long borrows;
+        private final long timeouts;
+        private final long totalWaitNanos;
+        private final long maxWaitNanos;
+        private final long resets;
+        private final int replaced;
+        private final double utilisation;
+
+        Statistics(int size, int inUse, long borrows, long timeouts, long totalWaitNanos,
+                   long maxWaitNanos, long resets, int replaced, double utilisation) {
+            this.size = size;
+            this.inUse = inUse;
+            this.borrows = borrows;
+            this.timeouts = timeouts;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.resets = resets;
+            this.replaced = replaced;
+            this.utilisation = utilisation;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        /**
+         * The number of handles currently borrowed
+         */
+        public int getInUse() {
+            return inUse;
+        }
+
+        /**
+         * The number of successful borrows
+         */
+        public long getBorrows() {
+            return borrows;
+        }
+
+        /**
+         * The number of borrows which gave up waiting
+         */
+        public long getTimeouts() {
+            return timeouts;
+        }
+
+        /**
+         * Time spent waiting in borrow, including borrows that timed out
+         */
+        public long getTotalWaitNanos() {
+            return totalWaitNanos;
+        }
+
+        public long getMaxWaitNanos() {
+            return maxWaitNanos;
+        }
+
+        public long getResets() {
+            return resets;
+        }
+
+        /**
+         * The number of handles which failed to reset and were replaced
+         */
+        public int getReplaced() {
+            return replaced;
+        }
+
+        /**
+         * The fraction of handle time spent borrowed since the pool was
+         * created, between 0 and 1
+         */
+        public double getUtilisation() {
+            return utilisation;
+        }
+
+        @Override
+        public String toString() {
+            return "Statistics{" +
+                    "size=" + size +
+                    ", inUse=" + inUse +
+                    ", borrows=" + borrows +
+                    ", timeouts=" + timeouts +
+                    ", totalWaitNanos=" + totalWaitNanos +
+                    ", maxWaitNanos=" + maxWaitNanos +
+                    ", resets=" + resets +
+                    ", replaced=" + replaced +
+                    ", utilisation=" + utilisation +
+                    '}';
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package net.augeas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable copy of a subtree, created with {@link Augeas#snapshot(String)}.
+ *
+ * Once created, a snapshot makes no calls into the augeas library and can
+ * be shared by any number of threads. Exact paths are looked up in a hash
+ * index; <tt>match</tt> understands absolute paths made of
+ * <tt>label</tt>, <tt>label[n]</tt> and <tt>*</tt> steps, which covers the
+ * canonical paths augeas itself returns.
+ *
+ * A snapshot becomes stale as soon as <tt>load</tt> or <tt>save</tt> is
+ * called on the handle it was taken from; any further read throws an
+ * AugeasException.
+ */
+public final class AugeasSnapshot {
+
+    private final Augeas source;
+    private final int generation;
+    private final String root;
+
+    private final String[] paths;
+    private final String[] labels;
+    private final String[] values;
+    private final int[] parents;
+    private final int[][] children;
+    private final int[] topLevel;
+    private final boolean[] indexed;
+    private final Map<String, Integer> index;
+
+    // Subtree fingerprints for AugeasDiff, computed on first use
+    private volatile long[] fingerprints;
+
+    AugeasSnapshot(Augeas source, int generation, String root, DumpResult dump) {
+        this.source = source;
+        this.generation = generation;
+        this.root = root;
+
+        int size = dump.size();
+        paths = new String[size];
+        labels = new String[size];
+        values = new String[size];
+        parents = new int[size];
+        indexed = new boolean[size];
+        index = new HashMap<String, Integer>(size * 2);
+
+        Map<String, Integer> byPath = new HashMap<String, Integer>(size * 2);
+        int[] childCount = new int[size];
+        int topCount = 0;
+        for (int i = 0; i < size; i++) {
+            paths[i] = dump.getPath(i);
+            labels[i] = dump.getLabel(i);
+            values[i] = dump.getValue(i);
+            byPath.put(paths[i], i);
+            List<Step> steps = parse(paths[i]);
+            index.put(key(steps), i);
+            for (Step step : steps) {
+                indexed[i] |= step.index > 0;
+            }
+            Integer parent = byPath.get(parentPath(paths[i]));
+            parents[i] = parent != null ? parent : -1;
+            if (parents[i] >= 0) {
+                childCount[parents[i]]++;
+            } else {
+                topCount++;
+            }
+        }
+
+        children = new int[size][];
+        topLevel = new int[topCount];
+        int[] filled = new int[size];
+        int top = 0;
+        for (int i = 0; i < size; i++) {
+            children[i] = new int[childCount[i]];
+            if (parents[i] >= 0) {
+                children[parents[i]][filled[parents[i]]++] = i;
+            } else {
+                topLevel[top++] = i;
+            }
+        }
+    }
+
+    /**
+     * The path expression the snapshot was taken from
+     */
+    public String getRoot() {
+        return root;
+    }
+
+    /**
+     * The number of nodes in the snapshot
+     */
+    public int size() {
+        return paths.length;
+    }
+
+    /**
+     * Returns false once the source handle has been loaded or saved
+     */
+    public boolean isValid() {
+        return source.getGeneration() == generation;
+    }
+
+    /**
+     * Lookup the value associated with PATH
+     * 
+     * @return the value, null if there is no such node
+     * @throws AugeasException
+     *             if more than one node matches PATH
+     */
+    public String get(String path) {
+        int node = find(path);
+        return node >= 0 ? values[node] : null;
+    }
+
+    /**
+     * Returns true if PATH matches at least one node
+     */
+    public boolean exists(String path) {
+        checkValid();
+        List<Step> steps = parse(path);
+        if (isLiteral(steps) && index.containsKey(key(steps))) {
+            return true;
+        }
+        return !matchNodes(steps).isEmpty();
+    }
+
+    /**
+     * Returns the label of the node at PATH, null if there is no such node
+     */
+    public String label(String path) {
+        int node = find(path);
+        return node >= 0 ? labels[node] : null;
+    }
+
+    /**
+     * Return the paths of the nodes which match PATH, in document order
+     */
+    public List<String> match(String path) {
+        checkValid();
+        List<Integer> nodes = matchNodes(parse(path));
+        List<String> result = new ArrayList<String>(nodes.size());
+        for (int node : nodes) {
+            result.add(paths[node]);
+        }
+        return result;
+    }
+
+    /**
+     * Return the paths of the children of the node at PATH
+     */
+    public List<String> children(String path) {
+        int node = find(path);
+        if (node < 0) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<String>(children[node].length);
+        for (int child : children[node]) {
+            result.add(paths[child]);
+        }
+        return result;
+    }
+
+    private int find(String path) {
+        checkValid();
+        List<Step> steps = parse(path);
+        if (isLiteral(steps)) {
+            Integer node = index.get(key(steps));
+            if (node != null && !ambiguous(steps, node)) {
+                return node;
+            }
+            if (node == null) {
+                return -1;
+            }
+        }
+        List<Integer> nodes = matchNodes(steps);
+        if (nodes.size() > 1) {
+            throw new AugeasException("get failed: Too many matches for path expression: " + path);
+        }
+        return nodes.isEmpty() ? -1 : nodes.get(0);
+    }
+
+    /**
+     * A step without an index that was resolved through the index to the
+     * first of several siblings with the same label; augeas treats such a
+     * path as matching all of them.
+     */
+    private boolean ambiguous(List<Step> steps, int node) {
+        if (!indexed[node]) {
+            return false;
+        }
+        List<Step> own = parse(paths[node]);
+        for (int i = 0; i < steps.size(); i++) {
+            if (steps.get(i).index == 0 && own.get(i).index > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Integer> matchNodes(List<Step> steps) {
+        List<Integer> result = new ArrayList<Integer>();
+        // Place the top level nodes of the snapshot against the pattern,
+        // then walk the remaining steps through their children
+        for (int top : topLevel) {
+            List<Step> own = parse(paths[top]);
+            if (own.size() > steps.size()) {
+                continue;
+            }
+            boolean matches = true;
+            for (int i = 0; i < own.size() && matches; i++) {
+                Step want = steps.get(i);
+                Step have = own.get(i);
+                matches = want.matches(have.name)
+                        && (want.index == 0 || want.index == Math.max(have.index, 1));
+            }
+            if (matches) {
+                result.addAll(descend(top, steps, own.size()));
+            }
+        }
+        return result;
+    }
+
+    private List<Integer> descend(int start, List<Step> steps, int from) {
+        List<Integer> level = new ArrayList<Integer>();
+        level.add(start);
+        for (int i = from; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            List<Integer> next = new ArrayList<Integer>();
+            for (int node : level) {
+                int seen = 0;
+                for (int child : children[node]) {
+                    if (!step.matches(labels[child])) {
+                        continue;
+                    }
+                    seen++;
+                    if (step.index == 0 || step.index == seen) {
+                        next.add(child);
+                    }
+                }
+            }
+            level = next;
+        }
+        return level;
+    }
+
+    /*
+     * Access by node number, in document order, for AugeasDiff
+     */
+
+    String pathAt(int node) {
+        return paths[node];
+    }
+
+    String labelAt(int node) {
+        return labels[node];
+    }
+
+    String valueAt(int node) {
+        return values[node];
+    }
+
+    int[] childrenOf(int node) {
+        return children[node];
+    }
+
+    int[] topLevelNodes() {
+        return topLevel;
+    }
+
+    long[] fingerprints() {
+        long[] result = fingerprints;
+        if (result == null) {
+            result = AugeasDiff.fingerprint(this);
+            fingerprints = result;
+        }
+        return result;
+    }
+
+    void checkValid() {
+        if (!isValid()) {
+            throw new AugeasException("Snapshot of " + root + " is stale");
+        }
+    }
+
+    private static boolean isLiteral(List<Step> steps) {
+        for (Step step : steps) {
+            if (step.name == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String key(List<Step> steps) {
+        StringBuilder sb = new StringBuilder();
+        for (Step step : steps) {
+            sb.append('/');
+            for (int i = 0; i < step.name.length(); i++) {
+                char c = step.name.charAt(i);
+                if (c == '/' || c == '[' || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+            sb.append('[').append(Math.max(step.index, 1)).append(']');
+        }
+        return sb.toString();
+    }
+
+    private static String parentPath(String path) {
+        return path.substring(0, path.length() - lastStep(path).length() - 1);
+    }
+
+    private static String lastStep(String path) {
+        int depth = 0;
+        for (int i = path.length() - 1; i >= 0; i--) {
+            char c = path.charAt(i);
+            if (escaped(path, i)) {
+                continue;
+            }
+            if (c == ']') {
+                depth++;
+            } else if (c == '[') {
+                depth--;
+            } else if (c == '/' && depth == 0) {
+                return path.substring(i + 1);
+            }
+        }
+        return path;
+    }
+
+    private static boolean escaped(String path, int pos) {
+        int backslashes = 0;
+        for (int i = pos - 1; i >= 0 && path.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+
+    /**
+     * Split an absolute path into its steps
+     */
+    static List<Step> parse(String path) {
+        if (path == null || !path.startsWith("/")) {
+            throw new AugeasException("Snapshots only support absolute paths: " + path);
+        }
+        List<Step> steps = new ArrayList<Step>();
+        int pos = 1;
+        int len = path.length();
+        while (pos < len) {
+            StringBuilder name = new StringBuilder();
+            boolean quoted = false;
+            while (pos < len && path.charAt(pos) != '/' && path.charAt(pos) != '[') {
+                char c = path.charAt(pos++);
+                if (c == '\\' && pos < len) {
+                    c = path.charAt(pos++);
+                    quoted = true;
+                }
+                name.append(c);
+            }
+            int index = 0;
+            if (pos < len && path.charAt(pos) == '[') {
+                int close = path.indexOf(']', pos);
+                if (close < 0) {
+                    throw new AugeasException("Unbalanced [ in path: " + path);
+                }
+                try {
+                    index = Integer.parseInt(path.substring(pos + 1, close).trim());
+                } catch (NumberFormatException e) {
+                    throw new AugeasException("Unsupported predicate in snapshot path: " + path);
+                }
+                if (index < 1) {
+                    throw new AugeasException("Unsupported predicate in snapshot path: " + path);
+                }
+                pos = close + 1;
+            }
+            if (name.length() == 0) {
+                throw new AugeasException("Unsupported path expression in snapshot: " + path);
+            }
+            boolean wildcard = !quoted && name.toString().equals("*");
+            if (wildcard && index > 0) {
+                throw new AugeasException("Unsupported path expression in snapshot: " + path);
+            }
+            steps.add(new Step(wildcard ? null : name.toString(), index));
+            if (pos < len) {
+                if (path.charAt(pos) != '/') {
+                    throw new AugeasException("Unsupported path expression in snapshot: " + path);
+                }
+                pos++;
+            }
+        }
+        return steps;
+    }
+
+    /**
+     * One step of a path; a null name stands for *, an index of 0 for no
+     * index
+     */
+    static final class Step {
+        final String name;
+        final int index;
+
+        Step(String name, int index) {
+            this.name = name;
+            this.index = index;
+        }
+
+        boolean matches(String label) {
+            return name == null || name.equals(label);
+        }
+    }
+}
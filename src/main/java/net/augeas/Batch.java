@@ -0,0 +1,140 @@
+package net.augeas;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Records modifications of the tree and applies them to an Augeas handle
+ * in one go, see {@link Augeas#batch()}.
+ *
+ * Applying a batch checks the handle once and calls the augeas library
+ * directly for each operation; failures do not raise exceptions but are
+ * reported per operation in the {@link BatchResult}. By default all
+ * operations are attempted, use <tt>stopOnFailure</tt> to stop at the
+ * first one that fails.
+ */
+public class Batch {
+
+    static final int SET = 0;
+    static final int SETM = 1;
+    static final int RM = 2;
+    static final int INSERT = 3;
+    static final int MOVE = 4;
+
+    static final String[] NAMES = { "set", "setMany", "rm", "insert", "move" };
+
+    /**
+     * A single recorded operation
+     */
+    static final class Operation {
+        final int type;
+        final String path;
+        final String arg1;
+        final String arg2;
+        final boolean before;
+
+        Operation(int type, String path, String arg1, String arg2, boolean before) {
+            this.type = type;
+            this.path = path;
+            this.arg1 = arg1;
+            this.arg2 = arg2;
+            this.before = before;
+        }
+    }
+
+    private final Augeas augeas;
+    private final List<Operation> operations = new ArrayList<Operation>();
+    private boolean stopOnFailure;
+
+    Batch(Augeas augeas) {
+        this.augeas = augeas;
+    }
+
+    /**
+     * Record setting the value associated with PATH to VALUE
+     */
+    public Batch set(String path, String value) {
+        operations.add(new Operation(SET, path, value, null, false));
+        return this;
+    }
+
+    /**
+     * Record setting the value of PATH to null
+     */
+    public Batch clear(String path) {
+        return set(path, null);
+    }
+
+    /**
+     * Record setting the value of the nodes matching SUB relative to each
+     * node matching BASE
+     */
+    public Batch setMany(String base, String sub, String value) {
+        operations.add(new Operation(SETM, base, sub, value, false));
+        return this;
+    }
+
+    /**
+     * Record removing PATH and all its children
+     */
+    public Batch rm(String path) {
+        operations.add(new Operation(RM, path, null, null, false));
+        return this;
+    }
+
+    /**
+     * Record inserting a new sibling LABEL before or after PATH
+     */
+    public Batch insert(String path, String label, boolean before) {
+        operations.add(new Operation(INSERT, path, label, null, before));
+        return this;
+    }
+
+    /**
+     * Record moving the node SRC to DST
+     */
+    public Batch move(String source, String dest) {
+        operations.add(new Operation(MOVE, source, dest, null, false));
+        return this;
+    }
+
+    /**
+     * Whether apply should stop at the first operation that fails
+     */
+    public Batch stopOnFailure(boolean value) {
+        stopOnFailure = value;
+        return this;
+    }
+
+    public boolean getStopOnFailure() {
+        return stopOnFailure;
+    }
+
+    /**
+     * The number of recorded operations
+     */
+    public int size() {
+        return operations.size();
+    }
+
+    List<Operation> getOperations() {
+        return operations;
+    }
+
+    /**
+     * Apply the recorded operations, in the order they were recorded. The
+     * batch can be applied again afterwards.
+     * 
+     * @return the outcome of each operation
+     */
+    public BatchResult apply() {
+        if (augeas == null) {
+            throw new AugeasException("Batch is not bound to a handle");
+        }
+        return augeas.apply(this);
+    }
+
+    BatchResult applyTo(Augeas aug) {
+        return aug.apply(this);
+    }
+}
@@ -0,0 +1,93 @@
+package net.augeas;
+
+/**
+ * The outcome of applying a {@link Batch}. Operations are identified by the
+ * order in which they were recorded.
+ */
+public final class BatchResult {
+    private final int[] returns;
+    private final String[] errors;
+    private final int applied;
+    private final int failures;
+
+    BatchResult(int[] returns, String[] errors, int applied) {
+        this.returns = returns;
+        this.errors = errors;
+        this.applied = applied;
+        int count = 0;
+        for (int i = 0; i < applied; i++) {
+            if (returns[i] == -1) {
+                count++;
+            }
+        }
+        this.failures = count;
+    }
+
+    /**
+     * The number of recorded operations
+     */
+    public int size() {
+        return returns.length;
+    }
+
+    /**
+     * The number of operations that were attempted; less than size() when
+     * the batch stopped at a failure
+     */
+    public int getApplied() {
+        return applied;
+    }
+
+    public int getFailureCount() {
+        return failures;
+    }
+
+    /**
+     * True if every operation was attempted and none failed
+     */
+    public boolean isSuccess() {
+        return failures == 0 && applied == returns.length;
+    }
+
+    /**
+     * The value returned by the augeas library for an operation
+     */
+    public int getReturn(int index) {
+        return returns[index];
+    }
+
+    /**
+     * True if the operation was attempted and failed
+     */
+    public boolean isFailed(int index) {
+        return index < applied && returns[index] == -1;
+    }
+
+    /**
+     * The error message of a failed operation, null otherwise
+     */
+    public String getError(int index) {
+        return errors[index];
+    }
+
+    /**
+     * The index of the first failed operation, -1 if none failed
+     */
+    public int getFirstFailure() {
+        for (int i = 0; i < applied; i++) {
+            if (returns[i] == -1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "BatchResult{" +
+                "size=" + returns.length +
+                ", applied=" + applied +
+                ", failures=" + failures +
+                '}';
+    }
+}
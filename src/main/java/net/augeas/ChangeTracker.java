@@ -0,0 +1,198 @@
+package net.augeas;
+
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * Maintains the list behind {@link Augeas#pendingChanges()}.
+ *
+ * Files are resolved from the literal leading steps of a path, which
+ * needs no call into the library once the include and exclude globs of
+ * the transforms have been read. Only paths starting with wildcards,
+ * variables or relative steps are matched against the tree.
+ */
+final class ChangeTracker {
+
+    private static final String FILES = "/files";
+
+    /**
+     * The globs of one transform
+     */
+    private static final class Transform {
+        final List<PathMatcher> incl = new ArrayList<PathMatcher>();
+        final List<PathMatcher> excl = new ArrayList<PathMatcher>();
+
+        boolean includes(Path file) {
+            for (PathMatcher matcher : excl) {
+                if (matcher.matches(file)) {
+                    return false;
+                }
+            }
+            for (PathMatcher matcher : incl) {
+                if (matcher.matches(file)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private final Augeas augeas;
+    private final List<PendingChanges.Change> changes = new ArrayList<PendingChanges.Change>();
+    private List<Transform> transforms;
+
+    ChangeTracker(Augeas augeas) {
+        this.augeas = augeas;
+    }
+
+    /**
+     * The files below which PATH may change nodes, to be called before
+     * the change is made
+     */
+    Set<String> files(String path) {
+        Set<String> files = new LinkedHashSet<String>();
+        if (path == null) {
+            return files;
+        }
+        if (path.startsWith("/augeas")) {
+            if (path.startsWith("/augeas/load")) {
+                transforms = null;
+            }
+            return files;
+        }
+        if (!resolve(path, files)) {
+            for (String node : augeas.nodes(path)) {
+                resolve(node, files);
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Add the file for the literal leading steps of PATH to FILES
+     *
+     * @return false if PATH has to be matched against the tree
+     */
+    private boolean resolve(String path, Set<String> files) {
+        if (!path.startsWith(FILES + "/")) {
+            return !path.startsWith("$") && path.startsWith("/");
+        }
+        List<Integer> separators = Transaction.separators(path);
+        StringBuilder file = new StringBuilder();
+        for (int i = 1; i < separators.size(); i++) {
+            int end = i + 1 < separators.size() ? separators.get(i + 1) : path.length();
+            String step = path.substring(separators.get(i) + 1, end);
+            int predicate = step.indexOf('[');
+            if (predicate > 0 && step.endsWith("]")) {
+                step = step.substring(0, predicate);
+            }
+            if (step.isEmpty() || step.equals(".") || step.equals("..")
+                    || step.indexOf('*') >= 0 || step.indexOf(':') >= 0
+                    || step.indexOf('(') >= 0 || step.indexOf('[') >= 0) {
+                return false;
+            }
+            file.append('/').append(Augeas.unescape(step));
+            if (includes(file.toString())) {
+                files.add(file.toString());
+                return true;
+            }
+        }
+        return true;
+    }
+
+    private boolean includes(String file) {
+        if (transforms == null) {
+            transforms = readTransforms();
+        }
+        Path path;
+        try {
+            path = FileSystems.getDefault().getPath(file);
+        } catch (InvalidPathException e) {
+            return false;
+        }
+        for (Transform transform : transforms) {
+            if (transform.includes(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private List<Transform> readTransforms() {
+        FileSystem fs = FileSystems.getDefault();
+        List<Transform> result = new ArrayList<Transform>();
+        for (String name : augeas.nodes("/augeas/load/*")) {
+            Transform transform = new Transform();
+            addGlobs(fs, name + "/incl", transform.incl);
+            addGlobs(fs, name + "/excl", transform.excl);
+            result.add(transform);
+        }
+        return result;
+    }
+
+    private void addGlobs(FileSystem fs, String path, List<PathMatcher> matchers) {
+        for (String node : augeas.nodes(path)) {
+            String glob = augeas.value(node);
+            if (glob == null) {
+                continue;
+            }
+            try {
+                matchers.add(fs.getPathMatcher("glob:" + glob));
+            } catch (PatternSyntaxException e) {
+                // A glob Java can not parse does not decide anything
+            }
+        }
+    }
+
+    void add(String operation, String path, String argument, Set<String> files) {
+        changes.add(new PendingChanges.Change(operation, path, argument,
+                Collections.unmodifiableSet(files)));
+    }
+
+    int size() {
+        return changes.size();
+    }
+
+    /**
+     * Forget the changes made after the first SIZE
+     */
+    void truncate(int size) {
+        while (changes.size() > size) {
+            changes.remove(changes.size() - 1);
+        }
+    }
+
+    /**
+     * Forget everything, after a save or a load
+     */
+    void clear() {
+        changes.clear();
+        transforms = null;
+    }
+
+    /**
+     * Forget the changes to FILES, which have been reloaded
+     */
+    void reloaded(Set<String> reloaded) {
+        for (Iterator<PendingChanges.Change> it = changes.iterator(); it.hasNext();) {
+            Set<String> files = it.next().getFiles();
+            if (!files.isEmpty() && reloaded.containsAll(files)) {
+                it.remove();
+            }
+        }
+    }
+
+    PendingChanges snapshot() {
+        return new PendingChanges(changes);
+    }
+}
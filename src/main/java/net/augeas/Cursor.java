@@ -0,0 +1,295 @@
+package net.augeas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * Walks the tree relative to a current node, see
+ * {@link Augeas#cursor(String)}.
+ *
+ * Each level of the walk is bound to a variable holding the nodes among
+ * which the cursor moves, and the children of the current node are bound
+ * by evaluating <tt>$var[n]/*</tt> against the level above rather than an
+ * absolute path. Labels and values are read by index from those nodesets,
+ * so visiting a node costs a constant number of calls however deep it
+ * is, and moving back to a parent needs no call at all.
+ *
+ * The calls are not free of the width of a level, though: libaugeas
+ * evaluates <tt>$var[n]</tt> by testing the position of every node of the
+ * level, so binding the children of each node of a level of N nodes
+ * takes time proportional to N squared. Matching child paths has the same
+ * cost, since each step of a path is filtered against all its siblings;
+ * the cursor only saves the steps above the current level.
+ *
+ * The first level holds every node matching the path the cursor was
+ * opened with, so at depth 0 <tt>toNextSibling</tt> moves to the next
+ * match, whether or not the matches share a parent.
+ *
+ * A cursor becomes stale once the tree is modified through its handle;
+ * any further use then throws an <tt>AugeasException</tt>.
+ */
+public final class Cursor implements AutoCloseable {
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final Augeas augeas;
+    private final String prefix;
+    private final int modifications;
+    private final PointerByReference value = new PointerByReference();
+    private final PointerByReference label = new PointerByReference();
+
+    // The number of nodes and the 0-based position at each level
+    private int[] counts = new int[8];
+    private int[] positions = new int[8];
+    private int depth;
+    private int maxDepth;
+    // Whether the variable one level down holds the children of the
+    // current node, and how many there are
+    private boolean childrenBound;
+    private int childCount;
+    private boolean closed;
+
+    Cursor(Augeas augeas) {
+        this.augeas = augeas;
+        this.prefix = "__jaug_cursor" + COUNT.incrementAndGet() + "_";
+        this.modifications = augeas.getModifications();
+    }
+
+    /**
+     * Bind the first level to the nodes matching PATH
+     *
+     * @return the number of nodes, or -1 on error
+     */
+    int open(String path) {
+        int count = augeas.AugLib.aug_defvar(augeas.aug, prefix + 0, "(" + path + ")");
+        counts[0] = count;
+        return count;
+    }
+
+    /**
+     * Distance from the node the cursor was opened on
+     */
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * The 0-based position of the current node among its siblings
+     */
+    public int getPosition() {
+        return positions[depth];
+    }
+
+    /**
+     * The number of nodes at the current level, including the current one
+     */
+    public int getSiblingCount() {
+        return counts[depth];
+    }
+
+    public String getLabel() {
+        read(prefix + depth, positions[depth]);
+        return string(label);
+    }
+
+    public String getValue() {
+        read(prefix + depth, positions[depth]);
+        return string(value);
+    }
+
+    /**
+     * The canonical path of the current node. Unlike the label and value,
+     * this needs a path evaluation and is best avoided in tight loops.
+     */
+    public String getPath() {
+        check();
+        List<String> paths = augeas.nodes(current());
+        if (paths.isEmpty()) {
+            throw augeas.exception("Cursor failed");
+        }
+        return paths.get(0);
+    }
+
+    public int getChildCount() {
+        bindChildren();
+        return childCount;
+    }
+
+    /**
+     * Read up to LIMIT children of the current node, starting with the one
+     * at position OFFSET, without moving the cursor
+     */
+    public List<Node> getChildren(int offset, int limit) {
+        bindChildren();
+        int end = (int) Math.min(childCount, (long) Math.max(offset, 0) + Math.max(limit, 0));
+        List<Node> page = new ArrayList<Node>(Math.max(end - offset, 0));
+        String var = prefix + (depth + 1);
+        for (int i = Math.max(offset, 0); i < end; i++) {
+            read(var, i);
+            page.add(new Node(i, string(label), string(value)));
+        }
+        return page;
+    }
+
+    /**
+     * Move to the first child of the current node
+     *
+     * @return false, without moving, if the node has no children
+     */
+    public boolean toFirstChild() {
+        return toChild(0);
+    }
+
+    /**
+     * Move to the child at position INDEX
+     *
+     * @return false, without moving, if there is no such child
+     */
+    public boolean toChild(int index) {
+        bindChildren();
+        if (index < 0 || index >= childCount) {
+            return false;
+        }
+        depth++;
+        maxDepth = Math.max(maxDepth, depth);
+        if (depth == counts.length) {
+            counts = Arrays.copyOf(counts, depth * 2);
+            positions = Arrays.copyOf(positions, depth * 2);
+        }
+        counts[depth] = childCount;
+        positions[depth] = index;
+        childrenBound = false;
+        return true;
+    }
+
+    /**
+     * Move to the parent of the current node
+     *
+     * @return false if the cursor is on the level it was opened on
+     */
+    public boolean toParent() {
+        check();
+        if (depth == 0) {
+            return false;
+        }
+        // The level being left holds exactly the children of the parent
+        childCount = counts[depth];
+        childrenBound = true;
+        depth--;
+        return true;
+    }
+
+    public boolean toNextSibling() {
+        return toSibling(positions[depth] + 1);
+    }
+
+    public boolean toPreviousSibling() {
+        return toSibling(positions[depth] - 1);
+    }
+
+    private boolean toSibling(int position) {
+        check();
+        if (position < 0 || position >= counts[depth]) {
+            return false;
+        }
+        positions[depth] = position;
+        childrenBound = false;
+        return true;
+    }
+
+    /**
+     * Undefine the variables used by this cursor
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (augeas.aug != null) {
+            for (int i = 0; i <= maxDepth + 1; i++) {
+                augeas.AugLib.aug_defvar(augeas.aug, prefix + i, null);
+            }
+        }
+    }
+
+    private String current() {
+        return "$" + prefix + depth + "[" + (positions[depth] + 1) + "]";
+    }
+
+    private void bindChildren() {
+        check();
+        if (childrenBound) {
+            return;
+        }
+        int count = augeas.AugLib.aug_defvar(augeas.aug, prefix + (depth + 1), current() + "/*");
+        if (count < 0) {
+            throw augeas.exception("Cursor failed");
+        }
+        maxDepth = Math.max(maxDepth, depth);
+        childCount = count;
+        childrenBound = true;
+    }
+
+    private void read(String var, int i) {
+        check();
+        if (augeas.AugLib.aug_ns_attr(augeas.aug, var, i, value, label, null) < 0) {
+            throw augeas.exception("Cursor failed");
+        }
+    }
+
+    private void check() {
+        if (closed) {
+            throw new AugeasException("Cursor closed");
+        }
+        augeas.check();
+        if (augeas.getModifications() != modifications) {
+            throw new AugeasException("Cursor is stale, the tree has been modified");
+        }
+    }
+
+    private static String string(PointerByReference ref) {
+        Pointer p = ref.getValue();
+        return p != null ? p.getString(0) : null;
+    }
+
+    /**
+     * A child read by {@link Cursor#getChildren(int, int)}
+     */
+    public static final class Node {
+        private final int position;
+        private final String label;
+        private final String value;
+
+        Node(int position, String label, String value) {
+            this.position = position;
+            this.label = label;
+            this.value = value;
+        }
+
+        /**
+         * The 0-based position among its siblings, for
+         * {@link Cursor#toChild(int)}
+         */
+        public int getPosition() {
+            return position;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        @Override
+        public String toString() {
+            return label + (value != null ? " = " + value : "");
+        }
+    }
+}
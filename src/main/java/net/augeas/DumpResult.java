@@ -0,0 +1,84 @@
+package net.augeas;
+
+import java.util.Arrays;
+
+/**
+ * The nodes of a subtree as returned by {@link Augeas#dump(String)}, in
+ * document order. The path, label and value of the node at index
+ * <tt>i</tt> are held in parallel arrays.
+ */
+public final class DumpResult {
+    private final String[] paths;
+    private final String[] labels;
+    private final String[] values;
+
+    public DumpResult(String[] paths, String[] labels, String[] values) {
+        if (paths.length != labels.length || paths.length != values.length) {
+            throw new IllegalArgumentException("paths, labels and values differ in length");
+        }
+        this.paths = paths;
+        this.labels = labels;
+        this.values = values;
+    }
+
+    /**
+     * The number of nodes in the dump
+     */
+    public int size() {
+        return paths.length;
+    }
+
+    public boolean isEmpty() {
+        return paths.length == 0;
+    }
+
+    /**
+     * The canonical path of the node at index
+     */
+    public String getPath(int index) {
+        return paths[index];
+    }
+
+    public String getLabel(int index) {
+        return labels[index];
+    }
+
+    /**
+     * The value of the node at index, null if the node has no value
+     */
+    public String getValue(int index) {
+        return values[index];
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        DumpResult that = (DumpResult) o;
+
+        if (!Arrays.equals(paths, that.paths)) return false;
+        if (!Arrays.equals(labels, that.labels)) return false;
+        if (!Arrays.equals(values, that.values)) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Arrays.hashCode(paths);
+        result = 31 * result + Arrays.hashCode(labels);
+        result = 31 * result + Arrays.hashCode(values);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("DumpResult{");
+        for (int i = 0; i < paths.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(paths[i]).append('=').append(values[i]);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,172 @@
+package net.augeas;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Binds frequently evaluated path expressions to augeas variables, see
+ * {@link Augeas#enableExpressionCache(int)}.
+ *
+ * The first time an absolute path expression is read through
+ * <tt>get</tt>, <tt>exists</tt> or <tt>match</tt> it is only remembered.
+ * When it is read again, its nodeset is bound to a variable with
+ * <tt>aug_defvar</tt>, and later reads use the variable, so libaugeas does
+ * not parse and evaluate the expression again. The least recently used
+ * expression is dropped, and its variable undefined, when the cache is
+ * full.
+ *
+ * A variable holds the nodes the expression matched when it was bound.
+ * Every modification made through the handle may change which nodes an
+ * expression matches, so all bindings are discarded whenever the tree is
+ * changed or loaded; they are bound again on their next use. Redefining
+ * a variable discards them too, and expressions which refer to variables
+ * are never cached, as their nodes depend on the variables' values.
+ */
+public final class ExpressionCache {
+
+    private static final String VAR_PREFIX = "__jaug_expr";
+
+    /**
+     * A remembered expression, bound to VAR if BOUND equals the cache's
+     * current generation
+     */
+    private static final class Entry {
+        final String name;
+        final String reference;
+        int bound = -1;
+
+        Entry(String name) {
+            this.name = name;
+            this.reference = "$" + name;
+        }
+    }
+
+    private final Augeas augeas;
+    private final int capacity;
+    private final Map<String, Entry> entries;
+    private int generation;
+    private int counter;
+
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    ExpressionCache(Augeas augeas, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive");
+        }
+        this.augeas = augeas;
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Return the expression to evaluate in place of EXPR
+     */
+    String resolve(String expr) {
+        if (expr == null || !expr.startsWith("/") || expr.indexOf('$') >= 0) {
+            return expr;
+        }
+        Entry entry = entries.get(expr);
+        if (entry == null) {
+            misses++;
+            if (entries.size() >= capacity) {
+                evictEldest();
+            }
+            entries.put(expr, new Entry(VAR_PREFIX + counter++));
+            return expr;
+        }
+        if (entry.bound == generation) {
+            hits++;
+            return entry.reference;
+        }
+        misses++;
+        if (augeas.bindVariable(entry.name, expr) < 0) {
+            return expr;
+        }
+        entry.bound = generation;
+        return entry.reference;
+    }
+
+    private void evictEldest() {
+        Iterator<Entry> it = entries.values().iterator();
+        Entry eldest = it.next();
+        it.remove();
+        evictions++;
+        if (eldest.bound >= 0) {
+            augeas.bindVariable(eldest.name, null);
+        }
+    }
+
+    /**
+     * Discard all bindings; called when the tree changes
+     */
+    void invalidate() {
+        generation++;
+        invalidations++;
+    }
+
+    /**
+     * Undefine all variables and forget all expressions
+     */
+    void clear() {
+        for (Entry entry : entries.values()) {
+            if (entry.bound >= 0) {
+                augeas.bindVariable(entry.name, null);
+            }
+        }
+        entries.clear();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The number of remembered expressions
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * The number of reads which used a bound variable
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * The number of reads which evaluated their expression
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public long getInvalidations() {
+        return invalidations;
+    }
+
+    public double getHitRate() {
+        long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ExpressionCache{" +
+                "size=" + entries.size() +
+                ", capacity=" + capacity +
+                ", hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", invalidations=" + invalidations +
+                '}';
+    }
+}
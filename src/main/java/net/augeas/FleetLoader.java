@@ -0,0 +1,261 @@
+package net.augeas;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.augeas.jna.Aug;
+
+/**
+ * Opens many independent roots, for example extracted container or VM
+ * images, on a fixed number of worker threads and applies an extraction
+ * callback to each of them.
+ *
+ * Every root gets its own handle, which is initialized (and, unless
+ * NO_LOAD is given, loaded) on a worker thread, passed to the callback and
+ * closed before the worker moves on. At most <tt>parallelism</tt> roots are
+ * being processed or waiting to be consumed at any time, which bounds the
+ * native memory held by open trees as well as the number of unread
+ * results. Roots are only taken from the input as results are consumed.
+ */
+public class FleetLoader implements AutoCloseable {
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final int parallelism;
+    private final String loadpath;
+    private final int flags;
+    private final Aug lib;
+    private final ExecutorService executor;
+
+    /**
+     * Create a loader running PARALLELISM handles at once
+     *
+     * @param parallelism
+     *            the number of worker threads
+     * @param loadpath
+     *            path for finding new schemas
+     * @param flags
+     *            flags for every handle
+     */
+    public FleetLoader(int parallelism, String loadpath, int flags) {
+        this(parallelism, loadpath, flags, Aug.INSTANCE);
+    }
+
+    /**
+     * Create a loader using a specific mapping of the augeas library
+     */
+    public FleetLoader(int parallelism, String loadpath, int flags, Aug lib) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        this.parallelism = parallelism;
+        this.loadpath = loadpath;
+        this.flags = flags;
+        this.lib = lib;
+        final int id = COUNT.incrementAndGet();
+        final AtomicInteger threads = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(parallelism, runnable -> {
+            Thread thread = new Thread(runnable, "augeas-fleet-" + id + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * Open every root in ROOTS and run EXTRACTOR on its handle. Results are
+     * returned in the order in which the roots finish; a root whose handle
+     * can not be created, or whose callback throws, produces a failed
+     * result instead of ending the iteration.
+     *
+     * @return the results, which must be closed if they are not consumed
+     *         entirely
+     */
+    public <T> Results<T> load(Iterable<String> roots, AugeasCallback<T> extractor) {
+        if (executor.isShutdown()) {
+            throw new AugeasException("Fleet loader closed");
+        }
+        return new Results<T>(roots.iterator(), extractor);
+    }
+
+    protected Augeas newHandle(String root) {
+        return new Augeas(root, loadpath, flags, lib);
+    }
+
+    /**
+     * Stop the worker threads once the roots being processed are done. All
+     * handles are closed when this returns.
+     */
+    public void close() {
+        executor.shutdown();
+        boolean interrupted = false;
+        while (!executor.isTerminated()) {
+            try {
+                executor.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * The outcome of processing one root
+     */
+    public static final class Result<T> {
+        private final String root;
+        private final T value;
+        private final RuntimeException error;
+        private final long elapsedNanos;
+
+        Result(String root, T value, RuntimeException error, long elapsedNanos) {
+            this.root = root;
+            this.value = value;
+            this.error = error;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public String getRoot() {
+            return root;
+        }
+
+        /**
+         * The value returned by the callback
+         *
+         * @throws AugeasException
+         *             if processing the root failed
+         */
+        public T getValue() {
+            if (error != null) {
+                throw new AugeasException("Processing " + root + " failed", error);
+            }
+            return value;
+        }
+
+        /**
+         * The exception thrown while processing the root, null on success
+         */
+        public RuntimeException getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /**
+         * The time spent opening, loading, extracting and closing
+         */
+        public long getElapsedNanos() {
+            return elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "Result{" + root + (error == null ? "=" + value : " failed: " + error) + '}';
+        }
+    }
+
+    /**
+     * Streams results as roots finish, submitting a new root each time a
+     * result is taken
+     */
+    public final class Results<T> implements Iterator<Result<T>>, AutoCloseable {
+        private final Iterator<String> roots;
+        private final AugeasCallback<T> extractor;
+        private final CompletionService<Result<T>> completion;
+        private int inFlight;
+        private boolean closed;
+
+        Results(Iterator<String> roots, AugeasCallback<T> extractor) {
+            this.roots = roots;
+            this.extractor = extractor;
+            this.completion = new ExecutorCompletionService<Result<T>>(executor);
+            fill();
+        }
+
+        private void fill() {
+            while (!closed && inFlight < parallelism && roots.hasNext()) {
+                final String root = roots.next();
+                completion.submit(() -> process(root));
+                inFlight++;
+            }
+        }
+
+        private Result<T> process(String root) {
+            long start = System.nanoTime();
+            T value = null;
+            RuntimeException error = null;
+            try (Augeas aug = newHandle(root)) {
+                value = extractor.call(aug);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            return new Result<T>(root, value, error, System.nanoTime() - start);
+        }
+
+        public boolean hasNext() {
+            return inFlight > 0;
+        }
+
+        public Result<T> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Future<Result<T>> done;
+            try {
+                done = completion.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AugeasException("Interrupted while waiting for a result", e);
+            }
+            inFlight--;
+            fill();
+            try {
+                return done.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AugeasException("Interrupted while waiting for a result", e);
+            } catch (ExecutionException e) {
+                throw new AugeasException("Processing a root failed", e.getCause());
+            }
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * Stop taking roots and wait for the ones being processed, so that
+         * their handles are closed when this returns
+         */
+        public void close() {
+            closed = true;
+            boolean interrupted = false;
+            while (inFlight > 0) {
+                try {
+                    completion.take();
+                    inFlight--;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
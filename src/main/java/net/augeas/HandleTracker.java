@@ -0,0 +1,106 @@
+package net.augeas;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Optional accounting of the native memory held by Augeas handles.
+ *
+ * When enabled, either with <tt>setEnabled</tt> or by setting the system
+ * property <tt>net.augeas.trackHandles</tt> to true, every handle created
+ * afterwards is counted until it is released, and the number of nodes
+ * under <tt>/files</tt> is counted after each load as an approximation of
+ * the size of its tree. Handles which are released by the garbage
+ * collector rather than by <tt>close</tt> are reported separately, since
+ * they point at code that leaks handles.
+ */
+public final class HandleTracker implements HandleTrackerMBean {
+
+    private static final HandleTracker INSTANCE = new HandleTracker();
+
+    private volatile boolean enabled = Boolean.getBoolean("net.augeas.trackHandles");
+    private final AtomicInteger live = new AtomicInteger();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+    private final AtomicLong nodes = new AtomicLong();
+
+    private HandleTracker() {
+    }
+
+    public static HandleTracker getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Turn tracking on or off; handles which exist already are not
+     * affected
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * The number of tracked handles which have not been released yet
+     */
+    public int getLiveHandles() {
+        return live.get();
+    }
+
+    public long getCreatedHandles() {
+        return created.get();
+    }
+
+    /**
+     * The number of tracked handles which were never closed and were
+     * released when they became unreachable
+     */
+    public long getReclaimedHandles() {
+        return reclaimed.get();
+    }
+
+    /**
+     * The number of nodes under /files in all live tracked handles, as
+     * counted after their last load
+     */
+    public long getApproximateNodes() {
+        return nodes.get();
+    }
+
+    /**
+     * Register the tracker with the platform MBean server as
+     * <tt>net.augeas:type=HandleTracker</tt>
+     */
+    public void register() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("net.augeas:type=HandleTracker"));
+        } catch (JMException e) {
+            throw new AugeasException("Could not register handle tracker MBean", e);
+        }
+    }
+
+    void opened() {
+        created.incrementAndGet();
+        live.incrementAndGet();
+    }
+
+    void released(long treeNodes, boolean byCleaner) {
+        live.decrementAndGet();
+        nodes.addAndGet(-treeNodes);
+        if (byCleaner) {
+            reclaimed.incrementAndGet();
+        }
+    }
+
+    void resized(long delta) {
+        nodes.addAndGet(delta);
+    }
+}
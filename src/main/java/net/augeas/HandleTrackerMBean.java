@@ -0,0 +1,19 @@
+package net.augeas;
+
+/**
+ * JMX view of {@link HandleTracker}
+ */
+public interface HandleTrackerMBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    int getLiveHandles();
+
+    long getCreatedHandles();
+
+    long getReclaimedHandles();
+
+    long getApproximateNodes();
+}
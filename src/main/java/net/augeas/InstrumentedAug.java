@@ -0,0 +1,254 @@
+package net.augeas;
+
+import net.augeas.AugeasMetrics.Operation;
+import net.augeas.jna.Aug;
+import net.augeas.jna.AugPointer;
+
+import com.sun.jna.Pointer;
+import com.sun.jna.StringArray;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * Mapping of the augeas library which times every call made through
+ * another mapping and records it in an {@link AugeasMetrics}.
+ *
+ * Instrumentation is opt-in: pass an InstrumentedAug to the Augeas
+ * constructor, e.g.
+ * <tt>new Augeas(root, loadpath, flags, new InstrumentedAug(Aug.INSTANCE, metrics))</tt>.
+ * Handles created without it pay nothing. When a call fails, the error
+ * code is looked up with an extra call to <tt>aug_error</tt>, which is not
+ * itself recorded.
+ */
+public class InstrumentedAug implements Aug {
+
+    private final Aug delegate;
+    private final AugeasMetrics metrics;
+
+    public InstrumentedAug(Aug delegate, AugeasMetrics metrics) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    public AugeasMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int aug_close(AugPointer aug) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_close(aug);
+        metrics.record(Operation.CLOSE, System.nanoTime() - start, ret == -1, null);
+        return ret;
+    }
+
+    public int aug_cp(AugPointer aug, String src, String dest) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_cp(aug, src, dest);
+        return finish(Operation.CP, aug, ret, start, size(src) + size(dest));
+    }
+
+    public int aug_defnode(AugPointer aug, String name, String expr, String value, IntByReference created) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_defnode(aug, name, expr, value, created);
+        return finish(Operation.DEFNODE, aug, ret, start, size(name) + size(expr) + size(value));
+    }
+
+    public int aug_defvar(AugPointer aug, String name, String expr) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_defvar(aug, name, expr);
+        return finish(Operation.DEFVAR, aug, ret, start, size(name) + size(expr));
+    }
+
+    public int aug_error(AugPointer aug) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_error(aug);
+        metrics.record(Operation.ERROR, System.nanoTime() - start, false, null);
+        return ret;
+    }
+
+    public String aug_error_details(AugPointer aug) {
+        long start = System.nanoTime();
+        String ret = delegate.aug_error_details(aug);
+        return finishError(start, ret);
+    }
+
+    public String aug_error_message(AugPointer aug) {
+        long start = System.nanoTime();
+        String ret = delegate.aug_error_message(aug);
+        return finishError(start, ret);
+    }
+
+    public String aug_error_minor_message(AugPointer aug) {
+        long start = System.nanoTime();
+        String ret = delegate.aug_error_minor_message(aug);
+        return finishError(start, ret);
+    }
+
+    public int aug_get(AugPointer aug, String path, StringArray value) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_get(aug, path, value);
+        long bytes = size(path);
+        if (value != null && ret == 1) {
+            Pointer p = value.getPointer(0);
+            if (p != null) {
+                bytes += p.indexOf(0, (byte) 0) + 1;
+            }
+        }
+        return finish(Operation.GET, aug, ret, start, bytes);
+    }
+
+    public int aug_get(AugPointer aug, Pointer path, PointerByReference value) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_get(aug, path, value);
+        long bytes = size(path);
+        if (value != null && ret == 1) {
+            bytes += size(value.getValue());
+        }
+        return finish(Operation.GET, aug, ret, start, bytes);
+    }
+
+    public AugPointer aug_init(String root, String loadpath, int flags) {
+        long start = System.nanoTime();
+        AugPointer ret = delegate.aug_init(root, loadpath, flags);
+        metrics.record(Operation.INIT, System.nanoTime() - start, ret == null, null);
+        metrics.addBytes(size(root) + size(loadpath));
+        return ret;
+    }
+
+    public int aug_insert(AugPointer aug, String path, String label, int before) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_insert(aug, path, label, before);
+        return finish(Operation.INSERT, aug, ret, start, size(path) + size(label));
+    }
+
+    public int aug_load(AugPointer aug) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_load(aug);
+        return finish(Operation.LOAD, aug, ret, start, 0);
+    }
+
+    public int aug_load_file(AugPointer aug, String file) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_load_file(aug, file);
+        return finish(Operation.LOAD_FILE, aug, ret, start, size(file));
+    }
+
+    public int aug_match(AugPointer aug, String path, PointerByReference matches) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_match(aug, path, matches);
+        return finish(Operation.MATCH, aug, ret, start, size(path));
+    }
+
+    public int aug_match(AugPointer aug, Pointer path, PointerByReference matches) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_match(aug, path, matches);
+        return finish(Operation.MATCH, aug, ret, start, size(path));
+    }
+
+    public int aug_ns_attr(AugPointer aug, String var, int i, PointerByReference value,
+                           PointerByReference label, PointerByReference filePath) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_ns_attr(aug, var, i, value, label, filePath);
+        return finish(Operation.NS_ATTR, aug, ret, start, size(var));
+    }
+
+    public int aug_mv(AugPointer aug, String src, String dest) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_mv(aug, src, dest);
+        return finish(Operation.MV, aug, ret, start, size(src) + size(dest));
+    }
+
+    public int aug_rm(AugPointer aug, String path) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_rm(aug, path);
+        return finish(Operation.RM, aug, ret, start, size(path));
+    }
+
+    public int aug_save(AugPointer aug) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_save(aug);
+        return finish(Operation.SAVE, aug, ret, start, 0);
+    }
+
+    public int aug_set(AugPointer aug, String path, String value) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_set(aug, path, value);
+        return finish(Operation.SET, aug, ret, start, size(path) + size(value));
+    }
+
+    public int aug_set(AugPointer aug, Pointer path, Pointer value) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_set(aug, path, value);
+        return finish(Operation.SET, aug, ret, start, size(path) + size(value));
+    }
+
+    public int aug_setm(AugPointer aug, String base, String sub, String value) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_setm(aug, base, sub, value);
+        return finish(Operation.SETM, aug, ret, start, size(base) + size(sub) + size(value));
+    }
+
+    public int aug_span(AugPointer aug, String path, PointerByReference filename,
+                        IntByReference labelStart, IntByReference labelEnd,
+                        IntByReference valueStart, IntByReference valueEnd,
+                        IntByReference spanStart, IntByReference spanEnd) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_span(aug, path, filename, labelStart, labelEnd,
+                valueStart, valueEnd, spanStart, spanEnd);
+        return finish(Operation.SPAN, aug, ret, start, size(path));
+    }
+
+    public int aug_span(AugPointer aug, Pointer path, PointerByReference filename,
+                        Pointer labelStart, Pointer labelEnd,
+                        Pointer valueStart, Pointer valueEnd,
+                        Pointer spanStart, Pointer spanEnd) {
+        long start = System.nanoTime();
+        int ret = delegate.aug_span(aug, path, filename, labelStart, labelEnd,
+                valueStart, valueEnd, spanStart, spanEnd);
+        return finish(Operation.SPAN, aug, ret, start, size(path));
+    }
+
+    private int finish(Operation op, AugPointer aug, int ret, long start, long bytes) {
+        long elapsed = System.nanoTime() - start;
+        AugeasErrorCode error = null;
+        if (ret == -1) {
+            error = AugeasErrorCode.forValue(delegate.aug_error(aug));
+        }
+        metrics.record(op, elapsed, ret == -1, error);
+        metrics.addBytes(bytes);
+        return ret;
+    }
+
+    private String finishError(long start, String ret) {
+        metrics.record(Operation.ERROR, System.nanoTime() - start, false, null);
+        metrics.addBytes(size(ret));
+        return ret;
+    }
+
+    /**
+     * The size of the NUL terminated string at P
+     */
+    static long size(Pointer p) {
+        return p == null ? 0 : p.indexOf(0, (byte) 0) + 1;
+    }
+
+    /**
+     * The size of S once encoded as a NUL terminated UTF-8 string
+     */
+    static long size(String s) {
+        if (s == null) {
+            return 0;
+        }
+        long size = s.length() + 1;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x800) {
+                // Surrogate pairs take four bytes for two chars
+                size += (c >= 0xD800 && c <= 0xDFFF) ? 1 : 2;
+            } else if (c >= 0x80) {
+                size += 1;
+            }
+        }
+        return size;
+    }
+}
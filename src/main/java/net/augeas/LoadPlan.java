@@ -0,0 +1,180 @@
+package net.augeas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import net.augeas.jna.Aug;
+
+/**
+ * The lenses, and the files each of them parses, that a handle needs.
+ * Opening a handle with a plan skips module autoloading and the initial
+ * load, so only the modules the listed lenses come from are compiled and
+ * only the files they include are parsed:
+ *
+ * <pre>
+ * Augeas aug = new LoadPlan()
+ *         .lens("Hosts.lns", "/etc/hosts")
+ *         .lens("Sshd.lns", "/etc/ssh/sshd_config")
+ *         .open("/", null, Augeas.NONE);
+ * </pre>
+ *
+ * All transforms are installed with a single batch and loaded with one
+ * call to aug_load. With {@link #setTimeLenses(boolean)} the transforms
+ * are instead installed and loaded one lens at a time, which costs an
+ * extra aug_load per lens (files loaded before are up to date and not
+ * parsed again) but reports the time each lens took through
+ * {@link Augeas#getLoadTimings()}.
+ */
+public final class LoadPlan {
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private boolean timeLenses;
+
+    /**
+     * Load the files matching the globs INCL with LENS. The transform is
+     * named after the module of the lens.
+     */
+    public LoadPlan lens(String lens, String... incl) {
+        return lens(null, lens, Arrays.asList(incl), null);
+    }
+
+    /**
+     * Load the files matching INCL but not EXCL with LENS, under the
+     * transform NAME
+     *
+     * @param name
+     *            a unique name (optional)
+     */
+    public LoadPlan lens(String name, String lens, List<String> incl, List<String> excl) {
+        if (lens == null)
+            throw new AugeasException("No Lens specified");
+        if (incl == null || incl.isEmpty())
+            throw new AugeasException("No files to include for " + lens);
+        if (name == null)
+            name = lens.substring(0, lens.indexOf('.') < 0 ? lens.length() : lens.indexOf('.')).replace("@", "");
+        for (Entry entry : entries) {
+            if (entry.name.equals(name)) {
+                throw new AugeasException("Duplicate transform " + name);
+            }
+        }
+        entries.add(new Entry(name, lens, new ArrayList<String>(incl),
+                excl != null ? new ArrayList<String>(excl) : new ArrayList<String>()));
+        return this;
+    }
+
+    /**
+     * Exclude the files matching EXCL from the lens added last
+     */
+    public LoadPlan exclude(String... excl) {
+        if (entries.isEmpty())
+            throw new AugeasException("No lens to exclude files from");
+        entries.get(entries.size() - 1).excl.addAll(Arrays.asList(excl));
+        return this;
+    }
+
+    /**
+     * Load lens by lens and record how long each one took. Off by default.
+     */
+    public LoadPlan setTimeLenses(boolean value) {
+        timeLenses = value;
+        return this;
+    }
+
+    public boolean getTimeLenses() {
+        return timeLenses;
+    }
+
+    /**
+     * The transform names, in the order the lenses were added
+     */
+    public List<String> getNames() {
+        List<String> names = new ArrayList<String>(entries.size());
+        for (Entry entry : entries) {
+            names.add(entry.name);
+        }
+        return names;
+    }
+
+    /**
+     * Open a handle on ROOT and load the plan into it. NO_MODL_AUTOLOAD and
+     * NO_LOAD are added to FLAGS.
+     */
+    public Augeas open(String root, String loadpath, int flags) {
+        return open(root, loadpath, flags, Aug.INSTANCE);
+    }
+
+    /**
+     * Open a handle using a specific mapping of the augeas library
+     */
+    public Augeas open(String root, String loadpath, int flags, Aug lib) {
+        Augeas aug = new Augeas(root, loadpath, flags | Augeas.NO_MODL_AUTOLOAD | Augeas.NO_LOAD, lib);
+        try {
+            load(aug);
+        } catch (RuntimeException e) {
+            aug.close();
+            throw e;
+        }
+        return aug;
+    }
+
+    private void load(Augeas aug) {
+        if (!timeLenses) {
+            Batch batch = aug.batch().stopOnFailure(true);
+            for (Entry entry : entries) {
+                entry.install(batch);
+            }
+            install(aug, batch);
+            aug.load();
+            return;
+        }
+        Map<String, Long> timings = new LinkedHashMap<String, Long>();
+        for (Entry entry : entries) {
+            Batch batch = aug.batch().stopOnFailure(true);
+            entry.install(batch);
+            install(aug, batch);
+            long start = System.nanoTime();
+            int ret = aug.load();
+            timings.put(entry.name, System.nanoTime() - start);
+            if (ret < 0) {
+                break;
+            }
+        }
+        aug.setLoadTimings(Collections.unmodifiableMap(timings));
+    }
+
+    private static void install(Augeas aug, Batch batch) {
+        BatchResult result = batch.apply();
+        if (!result.isSuccess()) {
+            throw new AugeasException(result.getError(result.getFirstFailure()));
+        }
+    }
+
+    private static final class Entry {
+        private final String name;
+        private final String lens;
+        private final List<String> incl;
+        private final List<String> excl;
+
+        Entry(String name, String lens, List<String> incl, List<String> excl) {
+            this.name = name;
+            this.lens = lens;
+            this.incl = incl;
+            this.excl = excl;
+        }
+
+        void install(Batch batch) {
+            String xfm = "/augeas/load/" + name + "/";
+            batch.set(xfm + "lens", lens);
+            for (String inc : incl) {
+                batch.set(xfm + "incl[last()+1]", inc);
+            }
+            for (String ex : excl) {
+                batch.set(xfm + "excl[last()+1]", ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package net.augeas;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+
+/**
+ * Iterates over the paths returned by aug_match, decoding each path only
+ * when it is requested.
+ *
+ * The array returned by aug_match and the strings in it are allocated by
+ * the augeas library. Every string is released as soon as it has been
+ * decoded, and the array once the last path has been returned. If the
+ * iteration is abandoned early, <tt>close</tt> must be called to release
+ * the remaining entries.
+ */
+public final class MatchIterator implements Iterator<String>, Closeable {
+
+    private Pointer matches;
+    private final int count;
+    private int index;
+
+    /* Reused by nextView */
+    private byte[] scratch;
+    private ByteBuffer scratchBuffer;
+    private Utf8Sequence view;
+
+    MatchIterator(Pointer matches, int count) {
+        this.matches = matches;
+        this.count = count;
+        if (count <= 0) {
+            close();
+        }
+    }
+
+    /**
+     * The total number of matches
+     */
+    public int size() {
+        return count;
+    }
+
+    public boolean hasNext() {
+        return matches != null && index < count;
+    }
+
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Pointer inner = matches.getPointer((long) index * Native.POINTER_SIZE);
+        index++;
+        String value = null;
+        if (inner != null) {
+            value = inner.getString(0);
+            Native.free(Pointer.nativeValue(inner));
+        }
+        if (index == count) {
+            close();
+        }
+        return value;
+    }
+
+    /**
+     * Return the next path as a view that is only valid until the next
+     * call to <tt>next</tt> or <tt>nextView</tt>. The path is copied into a
+     * buffer reused for the whole iteration, so paths that are only
+     * inspected or compared are never turned into Strings.
+     */
+    public Utf8Sequence nextView() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Pointer inner = matches.getPointer((long) index * Native.POINTER_SIZE);
+        index++;
+        Utf8Sequence value = null;
+        if (inner != null) {
+            int length = (int) inner.indexOf(0, (byte) 0);
+            if (scratch == null || scratch.length < length) {
+                scratch = new byte[Math.max(length, 2 * (scratch == null ? 64 : scratch.length))];
+                scratchBuffer = ByteBuffer.wrap(scratch);
+            }
+            inner.read(0, scratch, 0, length);
+            Native.free(Pointer.nativeValue(inner));
+            scratchBuffer.clear();
+            scratchBuffer.limit(length);
+            if (view == null) {
+                view = new Utf8Sequence(scratchBuffer);
+            } else {
+                view.wrap(scratchBuffer);
+            }
+            value = view;
+        }
+        if (index == count) {
+            close();
+        }
+        return value;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Release the entries which have not been returned yet, as well as the
+     * array holding them. Calling this more than once has no effect.
+     */
+    public void close() {
+        if (matches == null) {
+            return;
+        }
+        for (int x = index; x < count; x++) {
+            Pointer inner = matches.getPointer((long) x * Native.POINTER_SIZE);
+            if (inner != null) {
+                Native.free(Pointer.nativeValue(inner));
+            }
+        }
+        Native.free(Pointer.nativeValue(matches));
+        matches = null;
+    }
+}
@@ -0,0 +1,103 @@
+package net.augeas;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * Per-thread native memory reused to pass strings to the augeas library,
+ * see {@link Augeas#setReuseNativeBuffers(boolean)}.
+ *
+ * JNA copies every String argument into a newly allocated native buffer
+ * for the duration of the call. Here, strings are encoded, in JNA's
+ * default string encoding like String arguments, into a few buffers that
+ * are kept per thread and only replaced when a longer string comes along,
+ * so steady state calls allocate nothing natively.
+ */
+final class NativeBuffers {
+
+    private static final ThreadLocal<NativeBuffers> LOCAL = ThreadLocal.withInitial(NativeBuffers::new);
+
+    private static final int SLOTS = 2;
+    private static final int MIN_SIZE = 256;
+
+    /**
+     * The encoding of strings passed to and read from the augeas library
+     */
+    static final Charset ENCODING = Charset.forName(Native.getDefaultStringEncoding());
+    private static final boolean UTF8 = ENCODING.equals(StandardCharsets.UTF_8);
+
+    private final Memory[] memory = new Memory[SLOTS];
+    private final ByteBuffer[] views = new ByteBuffer[SLOTS];
+
+    /**
+     * Receives the value or match array of the current call
+     */
+    final PointerByReference result = new PointerByReference();
+
+    static NativeBuffers get() {
+        return LOCAL.get();
+    }
+
+    /**
+     * Encode S as a NUL terminated string into buffer SLOT, overwriting
+     * what the previous call on this thread put there
+     *
+     * @return the encoded string, or null if S is null
+     */
+    Pointer encode(int slot, String s) {
+        if (s == null) {
+            return null;
+        }
+        if (!UTF8) {
+            byte[] bytes = s.getBytes(ENCODING);
+            ByteBuffer out = buffer(slot, bytes.length + 1);
+            out.put(0, bytes);
+            out.put(bytes.length, (byte) 0);
+            return memory[slot];
+        }
+        // No char takes more than three bytes in UTF-8; surrogate pairs
+        // take four bytes for two chars
+        ByteBuffer out = buffer(slot, 3L * s.length() + 1);
+        int pos = 0;
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put(pos++, (byte) c);
+            } else if (c < 0x800) {
+                out.put(pos++, (byte) (0xC0 | (c >> 6)));
+                out.put(pos++, (byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length
+                    && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put(pos++, (byte) (0xF0 | (cp >> 18)));
+                out.put(pos++, (byte) (0x80 | ((cp >> 12) & 0x3F)));
+                out.put(pos++, (byte) (0x80 | ((cp >> 6) & 0x3F)));
+                out.put(pos++, (byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates become '?', like String.getBytes
+                out.put(pos++, (byte) '?');
+            } else {
+                out.put(pos++, (byte) (0xE0 | (c >> 12)));
+                out.put(pos++, (byte) (0x80 | ((c >> 6) & 0x3F)));
+                out.put(pos++, (byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        out.put(pos, (byte) 0);
+        return memory[slot];
+    }
+
+    private ByteBuffer buffer(int slot, long needed) {
+        if (memory[slot] == null || memory[slot].size() < needed) {
+            memory[slot] = new Memory(Math.max(needed, MIN_SIZE));
+            views[slot] = memory[slot].getByteBuffer(0, memory[slot].size());
+        }
+        return views[slot];
+    }
+}
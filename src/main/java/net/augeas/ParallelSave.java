@@ -0,0 +1,177 @@
+package net.augeas;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.augeas.jna.Aug;
+
+/**
+ * Implements {@link Augeas#saveParallel(int)}.
+ *
+ * The modified files are split into groups. Each group is written by its
+ * own handle on the same root, which gets the transforms and save mode of
+ * the original handle, loads the files of its group, replaces their trees
+ * with copies of the modified ones and saves them. All reads of the
+ * original handle happen on the calling thread before the workers start.
+ */
+final class ParallelSave {
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    /**
+     * What a worker found after saving its group
+     */
+    private static final class Outcome {
+        final Map<String, String[]> errors = new LinkedHashMap<String, String[]>();
+    }
+
+    private final Augeas augeas;
+    private final String root;
+    private final String loadpath;
+    private final int flags;
+    private final Aug lib;
+    private final String saveMode;
+    private final DumpResult transforms;
+
+    ParallelSave(Augeas augeas, String loadpath, int flags) {
+        this.augeas = augeas;
+        this.root = augeas.value("/augeas/root");
+        this.loadpath = loadpath;
+        this.flags = flags | Augeas.NO_LOAD | Augeas.NO_MODL_AUTOLOAD;
+        this.lib = augeas.AugLib;
+        this.saveMode = augeas.value("/augeas/save");
+        this.transforms = augeas.dump("/augeas/load");
+    }
+
+    /**
+     * Write FILES, given as paths below the root, with up to THREADS
+     * handles
+     *
+     * @return the files that could not be saved, with the error and
+     *         message augeas reported for them
+     */
+    Map<String, String[]> save(Collection<String> files, int threads) {
+        List<List<String>> groups = new ArrayList<List<String>>();
+        for (int i = 0; i < Math.min(threads, files.size()); i++) {
+            groups.add(new ArrayList<String>());
+        }
+        int next = 0;
+        for (String file : files) {
+            groups.get(next++ % groups.size()).add(file);
+        }
+        // Copy the trees while this thread still owns the handle
+        final List<Map<String, DumpResult>> trees = new ArrayList<Map<String, DumpResult>>();
+        for (List<String> group : groups) {
+            Map<String, DumpResult> copies = new LinkedHashMap<String, DumpResult>();
+            for (String file : group) {
+                String path = "/files" + escape(file);
+                copies.put(file, augeas.nodes(path).isEmpty() ? null : augeas.dump(path));
+            }
+            trees.add(copies);
+        }
+
+        Map<String, String[]> errors = new LinkedHashMap<String, String[]>();
+        if (groups.isEmpty()) {
+            return errors;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(groups.size(), runnable -> {
+            Thread thread = new Thread(runnable, "augeas-save-" + COUNT.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            List<Future<Outcome>> outcomes = new ArrayList<Future<Outcome>>();
+            for (final Map<String, DumpResult> copies : trees) {
+                outcomes.add(executor.submit(() -> write(copies)));
+            }
+            for (int i = 0; i < outcomes.size(); i++) {
+                Outcome outcome;
+                try {
+                    outcome = outcomes.get(i).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new AugeasException("Interrupted while saving", e);
+                } catch (ExecutionException e) {
+                    outcome = new Outcome();
+                    for (String file : groups.get(i)) {
+                        outcome.errors.put(file, new String[] { "save_failed", String.valueOf(e.getCause()) });
+                    }
+                }
+                errors.putAll(outcome.errors);
+            }
+            return errors;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Outcome write(Map<String, DumpResult> copies) {
+        Outcome outcome = new Outcome();
+        Augeas worker = new Augeas(root, loadpath, flags, lib);
+        try {
+            worker.check();
+            Aug wlib = worker.AugLib;
+            wlib.aug_rm(worker.aug, "/augeas/load/*");
+            copy(worker, transforms);
+            if (saveMode != null) {
+                wlib.aug_set(worker.aug, "/augeas/save", saveMode);
+            }
+            for (Map.Entry<String, DumpResult> entry : copies.entrySet()) {
+                String file = entry.getKey();
+                String path = "/files" + escape(file);
+                // A new file has nothing to load
+                wlib.aug_load_file(worker.aug, file);
+                wlib.aug_rm(worker.aug, path);
+                if (entry.getValue() != null) {
+                    copy(worker, entry.getValue());
+                }
+            }
+            wlib.aug_save(worker.aug);
+            for (String file : copies.keySet()) {
+                String error = "/augeas/files" + escape(file) + "/error";
+                String code = worker.value(error);
+                if (code != null) {
+                    outcome.errors.put(file, new String[] { code, worker.value(error + "/message") });
+                }
+            }
+        } finally {
+            worker.close();
+        }
+        return outcome;
+    }
+
+    /**
+     * Recreate the nodes in DUMP in TARGET. The paths in a dump are
+     * canonical and in document order, so setting them one after the other
+     * appends every node after its preceding siblings.
+     */
+    private static void copy(Augeas target, DumpResult dump) {
+        for (int i = 0; i < dump.size(); i++) {
+            target.AugLib.aug_set(target.aug, dump.getPath(i), dump.getValue(i));
+        }
+    }
+
+    /**
+     * Escape the characters that are special in path expressions in each
+     * step of FILE
+     */
+    static String escape(String file) {
+        StringBuilder sb = new StringBuilder(file.length() + 8);
+        for (int i = 0; i < file.length(); i++) {
+            char c = file.charAt(i);
+            if ("[]()=!,|*$'\"\\ \t\n".indexOf(c) >= 0) {
+                sb.append('\\');
+            }
+            sb.append(c);
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,130 @@
+package net.augeas;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The modifications made through a handle since it was last saved or
+ * loaded, grouped by the files they affect, see
+ * {@link Augeas#pendingChanges()}.
+ *
+ * The list is built from the calls made through the Java API; nothing is
+ * serialized to compute it. A file is listed when a change touches a node
+ * below its entry in <tt>/files</tt> and a transform under
+ * <tt>/augeas/load</tt> includes it, which is what decides whether
+ * <tt>save</tt> writes it. Changes outside of <tt>/files</tt>, or below
+ * a node no transform includes, are listed without a file.
+ */
+public final class PendingChanges {
+
+    /**
+     * One successful modification
+     */
+    public static final class Change {
+        private final String operation;
+        private final String path;
+        private final String argument;
+        private final Set<String> files;
+
+        Change(String operation, String path, String argument, Set<String> files) {
+            this.operation = operation;
+            this.path = path;
+            this.argument = argument;
+            this.files = files;
+        }
+
+        /**
+         * The name of the method making the change, such as <tt>set</tt>
+         * or <tt>move</tt>
+         */
+        public String getOperation() {
+            return operation;
+        }
+
+        /**
+         * The path expression the change was made to
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         * The value for set, setMany and defineNode, the label for insert
+         * and the destination for move; null for rm
+         */
+        public String getArgument() {
+            return argument;
+        }
+
+        /**
+         * The files below which nodes were changed, as paths below the root
+         */
+        public Set<String> getFiles() {
+            return files;
+        }
+
+        @Override
+        public String toString() {
+            return operation + "(" + path + (argument != null ? ", " + argument : "") + ")" + files;
+        }
+    }
+
+    private final List<Change> changes;
+    private final Map<String, List<Change>> byFile;
+
+    PendingChanges(List<Change> changes) {
+        this.changes = Collections.unmodifiableList(new ArrayList<Change>(changes));
+        this.byFile = new LinkedHashMap<String, List<Change>>();
+        for (Change change : this.changes) {
+            for (String file : change.getFiles()) {
+                List<Change> list = byFile.get(file);
+                if (list == null) {
+                    list = new ArrayList<Change>();
+                    byFile.put(file, list);
+                }
+                list.add(change);
+            }
+        }
+    }
+
+    /**
+     * All changes, oldest first
+     */
+    public List<Change> getChanges() {
+        return changes;
+    }
+
+    /**
+     * The changes affecting FILE
+     */
+    public List<Change> getChanges(String file) {
+        List<Change> list = byFile.get(file);
+        return list != null ? Collections.unmodifiableList(list) : Collections.<Change>emptyList();
+    }
+
+    /**
+     * The files that <tt>save</tt> is expected to write, in the order in
+     * which they were first changed
+     */
+    public Set<String> getFiles() {
+        return Collections.unmodifiableSet(new LinkedHashSet<String>(byFile.keySet()));
+    }
+
+    public boolean isEmpty() {
+        return changes.isEmpty();
+    }
+
+    public int size() {
+        return changes.size();
+    }
+
+    @Override
+    public String toString() {
+        return "PendingChanges{files=" + byFile.keySet() + ", changes=" + changes.size() + '}';
+    }
+}
@@ -0,0 +1,641 @@
+package net.augeas;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.StringArray;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+import net.augeas.jna.Aug;
+import net.augeas.jna.AugPointer;
+
+/**
+ * Mapping of the augeas library that runs it in a separate worker
+ * process, see {@link AugWorker}, so that a crash or runaway allocation
+ * in a lens takes down the worker rather than the JVM:
+ * <tt>new Augeas(root, loadpath, flags, remote)</tt>.
+ *
+ * Calls are sent over a Unix domain socket as an operation byte, the
+ * handle id and the arguments written back to back, with strings as a
+ * length and their UTF-8 bytes. Any number of threads can have requests
+ * in flight on the connection at once; responses come back in request
+ * order, and the worker only flushes once it has run every request it
+ * has received, so pipelined requests get their responses in one write.
+ *
+ * Out parameters follow the ownership rules of the library: match
+ * results and file names are allocated with malloc for the caller to
+ * free. Values returned by aug_get and aug_ns_attr are copies, which
+ * stay valid until the next call on the same handle, so views returned by
+ * <tt>Augeas.getValue</tt> must not be kept past the next call.
+ *
+ * If the worker dies, every call on a handle it held throws an
+ * <tt>AugeasException</tt>, and the next aug_init starts a new worker.
+ * Calls are not interruptible: the socket is read and written through
+ * the C library, see {@link UnixSocket}, and a caller that is interrupted
+ * keeps waiting for its response and returns with its interrupt status
+ * set.
+ */
+public class RemoteAug implements Aug, AutoCloseable {
+
+    static final byte CLOSE = 1;
+    static final byte CP = 2;
+    static final byte DEFNODE = 3;
+    static final byte DEFVAR = 4;
+    static final byte ERROR = 5;
+    static final byte ERROR_DETAILS = 6;
+    static final byte ERROR_MESSAGE = 7;
+    static final byte ERROR_MINOR_MESSAGE = 8;
+    static final byte GET = 9;
+    static final byte INIT = 10;
+    static final byte INSERT = 11;
+    static final byte LOAD = 12;
+    static final byte LOAD_FILE = 13;
+    static final byte MATCH = 14;
+    static final byte NS_ATTR = 15;
+    static final byte MV = 16;
+    static final byte RM = 17;
+    static final byte SAVE = 18;
+    static final byte SET = 19;
+    static final byte SETM = 20;
+    static final byte SPAN = 21;
+
+    // Which out parameters of aug_ns_attr the caller wants
+    static final int NS_VALUE = 1;
+    static final int NS_LABEL = 2;
+    static final int NS_FILE = 4;
+
+    private Connection connection;
+    private int epoch;
+    private int restarts;
+    private boolean closed;
+
+    // Values handed out by aug_get and aug_ns_attr, per handle, freed once
+    // the next call on the same handle has been answered
+    private final Map<Long, List<Pointer>> borrowed = new ConcurrentHashMap<Long, List<Pointer>>();
+
+    /**
+     * Start the worker process used by a new connection. The worker must
+     * listen on SOCKET and print a line to its standard output once it
+     * does.
+     */
+    protected Process startWorker(String socket) throws IOException {
+        String java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        return new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                AugWorker.class.getName(), socket)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+    }
+
+    /**
+     * The number of times a worker was started to replace one that died
+     */
+    public synchronized int getRestarts() {
+        return restarts;
+    }
+
+    /**
+     * The current worker process, null if none is running
+     */
+    synchronized Process getWorker() {
+        return connection != null && connection.failure == null ? connection.process : null;
+    }
+
+    /**
+     * Stop the worker. Handles it held become unusable, but the mapping
+     * itself can not be used again either.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (connection != null) {
+            connection.fail(new IOException("Remote mapping closed"));
+            connection = null;
+        }
+        for (Long peer : borrowed.keySet()) {
+            free(borrowed.remove(peer));
+        }
+    }
+
+    private synchronized Connection connect() {
+        if (closed) {
+            throw new AugeasException("Remote mapping closed");
+        }
+        if (connection == null || connection.failure != null) {
+            if (connection != null) {
+                restarts++;
+            }
+            connection = null;
+            try {
+                connection = new Connection(++epoch);
+            } catch (IOException e) {
+                throw new AugeasException("Could not start the augeas worker", e);
+            }
+        }
+        return connection;
+    }
+
+    private synchronized Connection connection(AugPointer aug) {
+        long peer = Pointer.nativeValue(aug.getPointer());
+        if (connection == null || (int) (peer >>> 32) != connection.epoch || connection.failure != null) {
+            throw new AugeasException("The augeas worker holding this handle is gone");
+        }
+        return connection;
+    }
+
+    private synchronized boolean isLive(AugPointer aug) {
+        long peer = Pointer.nativeValue(aug.getPointer());
+        return connection != null && (int) (peer >>> 32) == connection.epoch && connection.failure == null;
+    }
+
+    private static int id(AugPointer aug) {
+        return (int) Pointer.nativeValue(aug.getPointer());
+    }
+
+    private int call(AugPointer aug, byte op, Request request) {
+        return call(aug, op, request, in -> in.readInt());
+    }
+
+    /**
+     * Send a request for AUG. Values handed out by the handle's previous
+     * call stay valid while the request is written, as it may refer to
+     * them, and are freed afterwards.
+     */
+    private <T> T call(AugPointer aug, byte op, Request request, Response<T> response) {
+        List<Pointer> previous = borrowed.remove(Pointer.nativeValue(aug.getPointer()));
+        try {
+            return connection(aug).call(id(aug), op, request, response);
+        } finally {
+            free(previous);
+        }
+    }
+
+    private Pointer borrow(AugPointer aug, byte[] bytes) {
+        Pointer p = malloc(bytes);
+        if (p != null) {
+            borrowed.computeIfAbsent(Pointer.nativeValue(aug.getPointer()), k -> new ArrayList<Pointer>())
+                    .add(p);
+        }
+        return p;
+    }
+
+    private static void free(List<Pointer> pointers) {
+        if (pointers != null) {
+            for (Pointer p : pointers) {
+                Native.free(Pointer.nativeValue(p));
+            }
+        }
+    }
+
+    public int aug_close(AugPointer aug) {
+        free(borrowed.remove(Pointer.nativeValue(aug.getPointer())));
+        if (!isLive(aug)) {
+            // The worker took the handle with it
+            return 0;
+        }
+        return call(aug, CLOSE, out -> { });
+    }
+
+    public int aug_cp(AugPointer aug, String src, String dest) {
+        return call(aug, CP, out -> {
+            writeString(out, src);
+            writeString(out, dest);
+        });
+    }
+
+    public int aug_defnode(AugPointer aug, String name, String expr, String value, IntByReference created) {
+        return call(aug, DEFNODE, out -> {
+            writeString(out, name);
+            writeString(out, expr);
+            writeString(out, value);
+        }, in -> {
+            int ret = in.readInt();
+            int c = in.readInt();
+            if (created != null) {
+                created.setValue(c);
+            }
+            return ret;
+        });
+    }
+
+    public int aug_defvar(AugPointer aug, String name, String expr) {
+        return call(aug, DEFVAR, out -> {
+            writeString(out, name);
+            writeString(out, expr);
+        });
+    }
+
+    public int aug_error(AugPointer aug) {
+        return call(aug, ERROR, out -> { });
+    }
+
+    public String aug_error_details(AugPointer aug) {
+        return errorString(aug, ERROR_DETAILS);
+    }
+
+    public String aug_error_message(AugPointer aug) {
+        return errorString(aug, ERROR_MESSAGE);
+    }
+
+    public String aug_error_minor_message(AugPointer aug) {
+        return errorString(aug, ERROR_MINOR_MESSAGE);
+    }
+
+    private String errorString(AugPointer aug, byte op) {
+        return call(aug, op, out -> { }, in -> {
+            byte[] bytes = readBytes(in);
+            return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+        });
+    }
+
+    public int aug_get(AugPointer aug, String path, StringArray value) {
+        return get(aug, utf8(path), (ret, bytes) -> {
+            if (value != null && ret == 1) {
+                Memory memory = null;
+                if (bytes != null) {
+                    memory = new Memory(bytes.length + 1);
+                    memory.write(0, bytes, 0, bytes.length);
+                    memory.setByte(bytes.length, (byte) 0);
+                }
+                value.setPointer(0, memory);
+                value.read();
+            }
+        });
+    }
+
+    public int aug_get(AugPointer aug, Pointer path, PointerByReference value) {
+        return get(aug, bytes(path), (ret, bytes) -> {
+            if (value != null) {
+                value.setValue(ret == 1 ? borrow(aug, bytes) : null);
+            }
+        });
+    }
+
+    private interface ValueSink {
+        void accept(int ret, byte[] value);
+    }
+
+    private int get(AugPointer aug, byte[] path, ValueSink sink) {
+        return call(aug, GET, out -> writeBytes(out, path), in -> {
+            int ret = in.readInt();
+            byte[] bytes = readBytes(in);
+            sink.accept(ret, bytes);
+            return ret;
+        });
+    }
+
+    public AugPointer aug_init(String root, String loadpath, int flags) {
+        Connection c = connect();
+        int id = c.call(0, INIT, out -> {
+            writeString(out, root);
+            writeString(out, loadpath);
+            out.writeInt(flags);
+        }, in -> in.readInt());
+        if (id == 0) {
+            return null;
+        }
+        AugPointer aug = new AugPointer();
+        aug.setPointer(new Pointer(((long) c.epoch << 32) | (id & 0xffffffffL)));
+        return aug;
+    }
+
+    public int aug_insert(AugPointer aug, String path, String label, int before) {
+        return call(aug, INSERT, out -> {
+            writeString(out, path);
+            writeString(out, label);
+            out.writeInt(before);
+        });
+    }
+
+    public int aug_load(AugPointer aug) {
+        return call(aug, LOAD, out -> { });
+    }
+
+    public int aug_load_file(AugPointer aug, String file) {
+        return call(aug, LOAD_FILE, out -> writeString(out, file));
+    }
+
+    public int aug_match(AugPointer aug, String path, PointerByReference matches) {
+        return match(aug, utf8(path), matches);
+    }
+
+    public int aug_match(AugPointer aug, Pointer path, PointerByReference matches) {
+        return match(aug, bytes(path), matches);
+    }
+
+    private int match(AugPointer aug, byte[] path, PointerByReference matches) {
+        return call(aug, MATCH, out -> writeBytes(out, path), in -> {
+            int ret = in.readInt();
+            Pointer array = null;
+            if (ret > 0) {
+                array = matches != null ? malloc((long) ret * Native.POINTER_SIZE) : null;
+                for (int i = 0; i < ret; i++) {
+                    byte[] bytes = readBytes(in);
+                    if (array != null) {
+                        array.setPointer((long) i * Native.POINTER_SIZE, malloc(bytes));
+                    }
+                }
+            }
+            if (matches != null) {
+                matches.setValue(array);
+            }
+            return ret;
+        });
+    }
+
+    public int aug_ns_attr(AugPointer aug, String var, int i, PointerByReference value,
+                           PointerByReference label, PointerByReference filePath) {
+        int wanted = (value != null ? NS_VALUE : 0) | (label != null ? NS_LABEL : 0)
+                | (filePath != null ? NS_FILE : 0);
+        return call(aug, NS_ATTR, out -> {
+            writeString(out, var);
+            out.writeInt(i);
+            out.writeByte(wanted);
+        }, in -> {
+            int ret = in.readInt();
+            if (value != null) {
+                value.setValue(borrow(aug, readBytes(in)));
+            }
+            if (label != null) {
+                label.setValue(borrow(aug, readBytes(in)));
+            }
+            if (filePath != null) {
+                filePath.setValue(malloc(readBytes(in)));
+            }
+            return ret;
+        });
+    }
+
+    public int aug_mv(AugPointer aug, String src, String dest) {
+        return call(aug, MV, out -> {
+            writeString(out, src);
+            writeString(out, dest);
+        });
+    }
+
+    public int aug_rm(AugPointer aug, String path) {
+        return call(aug, RM, out -> writeString(out, path));
+    }
+
+    public int aug_save(AugPointer aug) {
+        return call(aug, SAVE, out -> { });
+    }
+
+    public int aug_set(AugPointer aug, String path, String value) {
+        return call(aug, SET, out -> {
+            writeString(out, path);
+            writeString(out, value);
+        });
+    }
+
+    public int aug_set(AugPointer aug, Pointer path, Pointer value) {
+        return call(aug, SET, out -> {
+            writeBytes(out, bytes(path));
+            writeBytes(out, bytes(value));
+        });
+    }
+
+    public int aug_setm(AugPointer aug, String base, String sub, String value) {
+        return call(aug, SETM, out -> {
+            writeString(out, base);
+            writeString(out, sub);
+            writeString(out, value);
+        });
+    }
+
+    public int aug_span(AugPointer aug, String path, PointerByReference filename,
+                        IntByReference labelStart, IntByReference labelEnd,
+                        IntByReference valueStart, IntByReference valueEnd,
+                        IntByReference spanStart, IntByReference spanEnd) {
+        return span(aug, utf8(path), filename, (ret, positions) -> {
+            if (ret == 0) {
+                labelStart.setValue(positions[0]);
+                labelEnd.setValue(positions[1]);
+                valueStart.setValue(positions[2]);
+                valueEnd.setValue(positions[3]);
+                spanStart.setValue(positions[4]);
+                spanEnd.setValue(positions[5]);
+            }
+        });
+    }
+
+    public int aug_span(AugPointer aug, Pointer path, PointerByReference filename,
+                        Pointer labelStart, Pointer labelEnd,
+                        Pointer valueStart, Pointer valueEnd,
+                        Pointer spanStart, Pointer spanEnd) {
+        return span(aug, bytes(path), filename, (ret, positions) -> {
+            if (ret == 0) {
+                labelStart.setInt(0, positions[0]);
+                labelEnd.setInt(0, positions[1]);
+                valueStart.setInt(0, positions[2]);
+                valueEnd.setInt(0, positions[3]);
+                spanStart.setInt(0, positions[4]);
+                spanEnd.setInt(0, positions[5]);
+            }
+        });
+    }
+
+    private interface PositionSink {
+        void accept(int ret, int[] positions);
+    }
+
+    private int span(AugPointer aug, byte[] path, PointerByReference filename, PositionSink sink) {
+        return call(aug, SPAN, out -> writeBytes(out, path), in -> {
+            int ret = in.readInt();
+            byte[] file = readBytes(in);
+            int[] positions = new int[6];
+            for (int i = 0; i < positions.length; i++) {
+                positions[i] = in.readInt();
+            }
+            if (filename != null) {
+                filename.setValue(ret == 0 ? malloc(file) : null);
+            }
+            sink.accept(ret, positions);
+            return ret;
+        });
+    }
+
+    /*
+     * Encoding shared with the worker
+     */
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        writeBytes(out, utf8(s));
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        return bytes != null ? new String(bytes, StandardCharsets.UTF_8) : null;
+    }
+
+    static byte[] utf8(String s) {
+        return s != null ? s.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * The bytes of the NUL terminated string at P
+     */
+    static byte[] bytes(Pointer p) {
+        return p != null ? p.getByteArray(0, (int) p.indexOf(0, (byte) 0)) : null;
+    }
+
+    private static Pointer malloc(long size) {
+        long peer = Native.malloc(Math.max(size, 1));
+        if (peer == 0) {
+            throw new OutOfMemoryError("malloc of " + size + " bytes failed");
+        }
+        return new Pointer(peer);
+    }
+
+    /**
+     * Copy BYTES into a NUL terminated string allocated with malloc, for
+     * the caller to free
+     */
+    private static Pointer malloc(byte[] bytes) {
+        if (bytes == null) {
+            return null;
+        }
+        Pointer p = malloc(bytes.length + 1);
+        p.write(0, bytes, 0, bytes.length);
+        p.setByte(bytes.length, (byte) 0);
+        return p;
+    }
+
+    private interface Request {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface Response<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+
+    /**
+     * One worker process and the socket connected to it
+     */
+    private final class Connection {
+        final int epoch;
+        final Process process;
+        final UnixSocket socket;
+        final DataInputStream in;
+        final DataOutputStream out;
+        private long sent;
+        private long received;
+        volatile IOException failure;
+
+        Connection(int epoch) throws IOException {
+            this.epoch = epoch;
+            Path dir = Files.createTempDirectory("augeas-worker");
+            Path path = dir.resolve("socket");
+            process = startWorker(path.toString());
+            try {
+                BufferedReader ready = new BufferedReader(
+                        new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+                if (ready.readLine() == null) {
+                    throw new IOException("The augeas worker exited before listening");
+                }
+                socket = new UnixSocket(path.toString());
+            } catch (IOException e) {
+                process.destroyForcibly();
+                throw e;
+            } finally {
+                Files.deleteIfExists(path);
+                Files.deleteIfExists(dir);
+            }
+            // The socket has buffers of its own for native memory, so the
+            // streams above it can be small
+            in = new DataInputStream(new BufferedInputStream(socket.getInputStream(65536), 8192));
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(65536), 8192));
+        }
+
+        <T> T call(int id, byte op, Request request, Response<T> response) {
+            long ticket;
+            synchronized (out) {
+                check();
+                try {
+                    out.writeByte(op);
+                    out.writeInt(id);
+                    request.write(out);
+                    out.flush();
+                } catch (IOException e) {
+                    throw fail(e);
+                }
+                ticket = sent++;
+            }
+            synchronized (in) {
+                boolean interrupted = false;
+                while (received != ticket && failure == null) {
+                    try {
+                        in.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                try {
+                    check();
+                    T ret = response.read(in);
+                    received++;
+                    return ret;
+                } catch (IOException e) {
+                    throw fail(e);
+                } finally {
+                    in.notifyAll();
+                    if (interrupted) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        private void check() {
+            if (failure != null) {
+                throw new AugeasException("The augeas worker is gone", failure);
+            }
+        }
+
+        AugeasException fail(IOException e) {
+            if (failure == null) {
+                failure = e;
+            }
+            socket.close();
+            process.destroyForcibly();
+            synchronized (in) {
+                in.notifyAll();
+            }
+            return new AugeasException("The augeas worker failed", e);
+        }
+    }
+}
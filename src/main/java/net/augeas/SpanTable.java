@@ -0,0 +1,224 @@
+package net.augeas;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * The spans of all nodes matching a path expression, see
+ * {@link Augeas#spans(String)}.
+ *
+ * Positions are kept in parallel int arrays indexed like the nodes, and
+ * every filename is stored once, so a table for a large file holds a
+ * handful of objects rather than one per node. A node without span
+ * information has -1 in all of its positions and no filename.
+ */
+public final class SpanTable {
+
+    private final String[] paths;
+    private final String[] filenames;
+    private final int[] file;
+    private final int[] labelStart;
+    private final int[] labelEnd;
+    private final int[] valueStart;
+    private final int[] valueEnd;
+    private final int[] spanStart;
+    private final int[] spanEnd;
+    private final int missing;
+
+    private SpanTable(String[] paths, String[] filenames, int[] file, int[] labelStart,
+                      int[] labelEnd, int[] valueStart, int[] valueEnd, int[] spanStart,
+                      int[] spanEnd, int missing) {
+        this.paths = paths;
+        this.filenames = filenames;
+        this.file = file;
+        this.labelStart = labelStart;
+        this.labelEnd = labelEnd;
+        this.valueStart = valueStart;
+        this.valueEnd = valueEnd;
+        this.spanStart = spanStart;
+        this.spanEnd = spanEnd;
+        this.missing = missing;
+    }
+
+    /**
+     * Call aug_span for each of the COUNT paths in the array MATCHES
+     * returned by aug_match, passing the native paths straight back and
+     * reusing one block of memory for the out parameters. The array and
+     * the strings in it are freed.
+     */
+    static SpanTable read(Augeas augeas, Pointer matches, int count) {
+        String[] paths = new String[count];
+        int[] file = new int[count];
+        int[][] positions = new int[6][count];
+        List<String> filenames = new ArrayList<String>();
+        Map<String, Integer> fileIndex = new HashMap<String, Integer>();
+        int missing = 0;
+
+        Memory out = new Memory(6 * 4);
+        Pointer[] slots = new Pointer[6];
+        for (int k = 0; k < 6; k++) {
+            slots[k] = out.share(k * 4, 4);
+        }
+        PointerByReference filename = new PointerByReference();
+        byte[] name = new byte[256];
+        byte[] lastName = null;
+        int lastIndex = -1;
+        int i = 0;
+        try {
+            for (; i < count; i++) {
+                Pointer path = matches.getPointer((long) i * Native.POINTER_SIZE);
+                paths[i] = path.getString(0);
+                // A failed aug_span leaves the out parameter alone, and the
+                // previous node's filename has been freed already
+                filename.setValue(null);
+                int ret = augeas.AugLib.aug_span(augeas.aug, path, filename, slots[0], slots[1],
+                        slots[2], slots[3], slots[4], slots[5]);
+                Native.free(Pointer.nativeValue(path));
+                Pointer f = filename.getValue();
+                if (ret < 0) {
+                    missing++;
+                    file[i] = -1;
+                    for (int k = 0; k < 6; k++) {
+                        positions[k][i] = -1;
+                    }
+                    if (f != null) {
+                        Native.free(Pointer.nativeValue(f));
+                    }
+                    continue;
+                }
+                for (int k = 0; k < 6; k++) {
+                    positions[k][i] = out.getInt(k * 4);
+                }
+                if (f == null) {
+                    file[i] = -1;
+                    continue;
+                }
+                // Consecutive nodes nearly always share their file, so
+                // compare the bytes before decoding another String
+                int length = (int) f.indexOf(0, (byte) 0);
+                if (name.length < length) {
+                    name = new byte[Math.max(length, 2 * name.length)];
+                }
+                f.read(0, name, 0, length);
+                Native.free(Pointer.nativeValue(f));
+                if (lastName == null || lastName.length != length
+                        || !Arrays.equals(lastName, 0, length, name, 0, length)) {
+                    lastName = Arrays.copyOf(name, length);
+                    String decoded = Native.toString(lastName);
+                    Integer index = fileIndex.get(decoded);
+                    if (index == null) {
+                        index = filenames.size();
+                        filenames.add(decoded);
+                        fileIndex.put(decoded, index);
+                    }
+                    lastIndex = index;
+                }
+                file[i] = lastIndex;
+            }
+        } finally {
+            for (int x = i + 1; x < count; x++) {
+                Pointer path = matches.getPointer((long) x * Native.POINTER_SIZE);
+                if (path != null) {
+                    Native.free(Pointer.nativeValue(path));
+                }
+            }
+            if (matches != null) {
+                Native.free(Pointer.nativeValue(matches));
+            }
+        }
+        return new SpanTable(paths, filenames.toArray(new String[filenames.size()]), file,
+                positions[0], positions[1], positions[2], positions[3], positions[4],
+                positions[5], missing);
+    }
+
+    /**
+     * The number of nodes
+     */
+    public int size() {
+        return paths.length;
+    }
+
+    /**
+     * The number of nodes without span information
+     */
+    public int getMissingCount() {
+        return missing;
+    }
+
+    /**
+     * Returns true if span information is available for node I
+     */
+    public boolean hasSpan(int i) {
+        return labelStart[i] >= 0 || spanStart[i] >= 0;
+    }
+
+    public String getPath(int i) {
+        return paths[i];
+    }
+
+    /**
+     * All distinct filenames, in order of first appearance
+     */
+    public String[] getFilenames() {
+        return filenames.clone();
+    }
+
+    /**
+     * The position of node I's filename in <tt>getFilenames</tt>, -1 if
+     * there is none
+     */
+    public int getFileIndex(int i) {
+        return file[i];
+    }
+
+    public String getFilename(int i) {
+        return file[i] >= 0 ? filenames[file[i]] : null;
+    }
+
+    public int getLabelStart(int i) {
+        return labelStart[i];
+    }
+
+    public int getLabelEnd(int i) {
+        return labelEnd[i];
+    }
+
+    public int getValueStart(int i) {
+        return valueStart[i];
+    }
+
+    public int getValueEnd(int i) {
+        return valueEnd[i];
+    }
+
+    public int getSpanStart(int i) {
+        return spanStart[i];
+    }
+
+    public int getSpanEnd(int i) {
+        return spanEnd[i];
+    }
+
+    /**
+     * The span of node I in the form returned by <tt>Augeas.span</tt>
+     */
+    public SpanResult getSpan(int i) {
+        String name = getFilename(i);
+        return new SpanResult(name != null ? name : "", labelStart[i], labelEnd[i],
+                valueStart[i], valueEnd[i], spanStart[i], spanEnd[i]);
+    }
+
+    @Override
+    public String toString() {
+        return "SpanTable{nodes=" + paths.length + ", files=" + Arrays.toString(filenames)
+                + ", missing=" + missing + '}';
+    }
+}
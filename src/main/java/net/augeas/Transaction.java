@@ -0,0 +1,531 @@
+package net.augeas;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+import com.sun.jna.ptr.IntByReference;
+
+/**
+ * An undo log for the modifications made through a handle, see
+ * {@link Augeas#beginTransaction()}.
+ *
+ * While a transaction is active, every <tt>set</tt>, <tt>setMany</tt>,
+ * <tt>rm</tt>, <tt>insert</tt>, <tt>move</tt> and <tt>defineNode</tt>
+ * records how to revert its effect: the previous value of a modified node,
+ * the path of a created node, or a copy of a removed subtree together with
+ * its position. Copies are kept below <tt>/augeas/__jaug_transaction</tt>
+ * until the transaction ends. Reverting a change therefore costs about as
+ * much as the change itself, no matter how large the tree is.
+ *
+ * Entries are reverted newest first, so each one is applied to the tree
+ * exactly as it was right after the recorded call; this is what lets the
+ * log refer to nodes by the positional paths returned by aug_match.
+ *
+ * A change that can not be recorded, for instance because the subtree it
+ * removes can not be copied, fails without touching the tree. A change
+ * whose effect the log can not describe, such as setting a path that does
+ * not lead to a single node, is made but marks the transaction: rolling
+ * back past it reverts what was recorded and then throws.
+ *
+ * The tree can not be loaded while a transaction is active.
+ */
+public final class Transaction implements AutoCloseable {
+
+    static final String STASH = "/augeas/__jaug_transaction";
+
+    /* Kinds of undo entries */
+    private static final int VALUE = 0;
+    private static final int REMOVE = 1;
+    private static final int REPLACE = 2;
+    private static final int RESTORE = 3;
+    private static final int UNRECORDED = 4;
+
+    /**
+     * One step of the undo log. For VALUE, PATH gets VALUE back; REMOVE
+     * removes PATH; REPLACE moves the copy STASH over PATH; RESTORE inserts
+     * a node LABEL as child INDEX of PATH and moves the copy STASH into it;
+     * UNRECORDED stands for a change that can not be reverted.
+     */
+    private static final class Entry {
+        final int kind;
+        final String path;
+        final String value;
+        final String stash;
+        final String label;
+        final int index;
+
+        Entry(int kind, String path, String value, String stash, String label, int index) {
+            this.kind = kind;
+            this.path = path;
+            this.value = value;
+            this.stash = stash;
+            this.label = label;
+            this.index = index;
+        }
+    }
+
+    private final Augeas augeas;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private int stashCount;
+    private boolean active = true;
+
+    /**
+     * The number of tracked changes at each savepoint, see
+     * Augeas.pendingChanges
+     */
+    private final TreeMap<Integer, Integer> changeMarks = new TreeMap<Integer, Integer>();
+
+    Transaction(Augeas augeas) {
+        this.augeas = augeas;
+        changeMarks.put(0, augeas.changeCount());
+    }
+
+    /**
+     * Returns true until the transaction is committed or rolled back
+     */
+    public boolean isActive() {
+        return active;
+    }
+
+    /**
+     * The number of entries in the undo log
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * Mark the current position in the undo log
+     *
+     * @return a savepoint to pass to <tt>rollbackTo</tt>
+     */
+    public int savepoint() {
+        checkActive();
+        changeMarks.put(entries.size(), augeas.changeCount());
+        return entries.size();
+    }
+
+    /**
+     * Revert all changes made after SAVEPOINT was taken. The transaction
+     * stays active, and savepoints taken before SAVEPOINT remain valid.
+     *
+     * @return 0 on success, -1 if some change could not be reverted
+     * @throws AugeasException
+     *             if a change made after SAVEPOINT was not recorded
+     */
+    public int rollbackTo(int savepoint) {
+        checkActive();
+        if (savepoint < 0 || savepoint > entries.size()) {
+            throw new IllegalArgumentException("Invalid savepoint " + savepoint);
+        }
+        augeas.check();
+        int ret = 0;
+        boolean lost = false;
+        for (int i = entries.size() - 1; i >= savepoint; i--) {
+            Entry entry = entries.remove(i);
+            if (entry.kind == UNRECORDED) {
+                lost = true;
+            } else if (undo(entry) < 0) {
+                ret = -1;
+            }
+        }
+        Integer mark = changeMarks.get(savepoint);
+        if (mark != null) {
+            augeas.truncateChanges(mark);
+        }
+        changeMarks.tailMap(savepoint, false).clear();
+        augeas.treeChanged();
+        if (lost) {
+            augeas.lastReturn = -1;
+            throw new AugeasException("rollback failed: the transaction contains changes "
+                    + "that were not recorded");
+        }
+        augeas.lastReturn = ret;
+        augeas.processLastCall("rollback failed");
+        return ret;
+    }
+
+    /**
+     * Revert all changes made during the transaction and end it
+     *
+     * @return 0 on success, -1 if some change could not be reverted
+     * @throws AugeasException
+     *             if a change was not recorded
+     */
+    public int rollback() {
+        try {
+            return rollbackTo(0);
+        } finally {
+            end();
+        }
+    }
+
+    /**
+     * Save the changes made during the transaction and end it. If saving
+     * fails, the transaction stays active so that it can be rolled back.
+     *
+     * @return -1 on error, 0 on success
+     */
+    public int commit() {
+        checkActive();
+        int ret = augeas.save();
+        if (ret >= 0) {
+            end();
+        }
+        return ret;
+    }
+
+    /**
+     * Roll back the transaction unless it was committed
+     */
+    public void close() {
+        if (active) {
+            rollback();
+        }
+    }
+
+    private void checkActive() {
+        if (!active) {
+            throw new AugeasException("Transaction is no longer active");
+        }
+    }
+
+    /**
+     * Forget the undo log and drop the copies it refers to
+     */
+    private void end() {
+        active = false;
+        entries.clear();
+        augeas.endTransaction(this);
+        if (augeas.aug != null) {
+            augeas.AugLib.aug_rm(augeas.aug, STASH);
+        }
+    }
+
+    /**
+     * Called when the handle is closed under an active transaction
+     */
+    void abandon() {
+        active = false;
+        entries.clear();
+    }
+
+    private int undo(Entry entry) {
+        switch (entry.kind) {
+        case VALUE:
+            return augeas.AugLib.aug_set(augeas.aug, entry.path, entry.value);
+        case REMOVE:
+            return augeas.AugLib.aug_rm(augeas.aug, entry.path);
+        case REPLACE:
+            return augeas.AugLib.aug_mv(augeas.aug, entry.stash, entry.path);
+        case RESTORE:
+            return restore(entry);
+        default:
+            throw new IllegalStateException("Unknown undo entry " + entry.kind);
+        }
+    }
+
+    /**
+     * Put the copy of a removed node back at its old position among the
+     * children of its parent
+     */
+    private int restore(Entry entry) {
+        List<String> children = augeas.nodes(entry.path + "/*");
+        int ret;
+        if (children.isEmpty()) {
+            ret = augeas.AugLib.aug_set(augeas.aug, entry.path + "/" + entry.value, null);
+        } else if (entry.index < children.size()) {
+            ret = augeas.AugLib.aug_insert(augeas.aug, children.get(entry.index), entry.label, 1);
+        } else {
+            ret = augeas.AugLib.aug_insert(augeas.aug, children.get(children.size() - 1), entry.label, 0);
+        }
+        if (ret < 0) {
+            return ret;
+        }
+        children = augeas.nodes(entry.path + "/*");
+        if (entry.index >= children.size()) {
+            return -1;
+        }
+        return augeas.AugLib.aug_mv(augeas.aug, entry.stash, children.get(entry.index));
+    }
+
+    int recordSet(String path, String value) {
+        List<String> nodes = augeas.nodes(path);
+        if (nodes.size() > 1) {
+            return unrecorded(augeas.AugLib.aug_set(augeas.aug, path, value));
+        }
+        String node = nodes.isEmpty() ? null : nodes.get(0);
+        String old = node != null ? augeas.value(node) : null;
+        String parent = node == null ? existingParent(path) : null;
+        int ret = augeas.AugLib.aug_set(augeas.aug, path, value);
+        if (ret >= 0) {
+            if (node != null) {
+                entries.add(new Entry(VALUE, node, old, null, null, 0));
+            } else {
+                recordCreated(parent);
+            }
+        }
+        return ret;
+    }
+
+    int recordSetm(String base, String sub, String value) {
+        List<String> old = new ArrayList<String>();
+        List<String> parents = new ArrayList<String>();
+        for (String node : augeas.nodes(base)) {
+            String target = sub != null ? node + "/" + sub : node;
+            List<String> nodes = augeas.nodes(target);
+            if (nodes.isEmpty()) {
+                parents.add(existingParent(target));
+            }
+            old.addAll(nodes);
+        }
+        List<String> values = new ArrayList<String>(old.size());
+        for (String node : old) {
+            values.add(augeas.value(node));
+        }
+        int ret = augeas.AugLib.aug_setm(augeas.aug, base, sub, value);
+        if (ret >= 0) {
+            for (int i = 0; i < old.size(); i++) {
+                entries.add(new Entry(VALUE, old.get(i), values.get(i), null, null, 0));
+            }
+            for (String parent : parents) {
+                recordCreated(parent);
+            }
+        }
+        return ret;
+    }
+
+    int recordRm(String path) {
+        List<String> nodes = augeas.nodes(path);
+        Set<String> matched = new HashSet<String>(nodes);
+        List<Entry> removed = new ArrayList<Entry>();
+        for (String node : nodes) {
+            if (hasAncestorIn(node, matched)) {
+                continue;
+            }
+            String parent = parent(node);
+            String step = node.substring(parent.length() + 1);
+            String label = step.replaceFirst("\\[[0-9]+\\]$", "");
+            int index = augeas.nodes(parent + "/*").indexOf(node);
+            String stash = stash(node);
+            if (stash == null) {
+                dropStashes(removed);
+                return -1;
+            }
+            removed.add(new Entry(RESTORE, parent, label, stash, Augeas.unescape(label), index));
+        }
+        int ret = augeas.AugLib.aug_rm(augeas.aug, path);
+        if (ret < 0) {
+            dropStashes(removed);
+            return ret;
+        }
+        // Restore in document order, so that every position refers to the
+        // siblings as they were before the removal
+        for (int i = removed.size() - 1; i >= 0; i--) {
+            entries.add(removed.get(i));
+        }
+        return ret;
+    }
+
+    int recordInsert(String path, String label, int before) {
+        List<String> nodes = augeas.nodes(path);
+        if (nodes.size() != 1) {
+            return unrecorded(augeas.AugLib.aug_insert(augeas.aug, path, label, before));
+        }
+        String parent = parent(nodes.get(0));
+        int index = augeas.nodes(parent + "/*").indexOf(nodes.get(0));
+        int ret = augeas.AugLib.aug_insert(augeas.aug, path, label, before);
+        if (ret >= 0) {
+            List<String> children = augeas.nodes(parent + "/*");
+            int created = before != 0 ? index : index + 1;
+            if (index >= 0 && created < children.size()) {
+                entries.add(new Entry(REMOVE, children.get(created), null, null, null, 0));
+            } else {
+                unrecorded(ret);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * A move is recorded as a copy of the source over the destination,
+     * followed by the removal of the source, so that both halves can be
+     * reverted with the entries used for set and rm
+     */
+    int recordMove(String source, String dest) {
+        List<String> sources = augeas.nodes(source);
+        List<String> dests = augeas.nodes(dest);
+        if (sources.size() != 1 || dests.size() > 1) {
+            return unrecorded(augeas.AugLib.aug_mv(augeas.aug, source, dest));
+        }
+        String src = sources.get(0);
+        String dst = dests.isEmpty() ? existingParent(dest) : dests.get(0);
+        if (dst == null || dst.equals(src) || dst.startsWith(src + "/")) {
+            // aug_mv refuses to move a node into itself
+            return unrecorded(augeas.AugLib.aug_mv(augeas.aug, source, dest));
+        }
+        int ret;
+        if (dests.isEmpty()) {
+            ret = augeas.AugLib.aug_cp(augeas.aug, src, dest);
+            if (ret >= 0) {
+                recordCreated(dst);
+            }
+        } else {
+            String stash = stash(dst);
+            if (stash == null) {
+                return -1;
+            }
+            if (src.startsWith(dst + "/")) {
+                // The source is replaced along with the old children of the
+                // destination, and the copy of the destination restores it
+                ret = augeas.AugLib.aug_mv(augeas.aug, src, dst);
+            } else {
+                ret = augeas.AugLib.aug_cp(augeas.aug, src, dst);
+            }
+            if (ret < 0) {
+                augeas.AugLib.aug_rm(augeas.aug, stash);
+                return ret;
+            }
+            entries.add(new Entry(REPLACE, dst, null, stash, null, 0));
+            if (src.startsWith(dst + "/")) {
+                return ret;
+            }
+        }
+        if (ret < 0) {
+            return ret;
+        }
+        return recordRm(src) < 0 ? -1 : 0;
+    }
+
+    int recordDefnode(String name, String expr, String value, IntByReference created) {
+        String parent = augeas.nodes(expr).isEmpty() ? existingParent(expr) : null;
+        int ret = augeas.AugLib.aug_defnode(augeas.aug, name, expr, value, created);
+        if (ret >= 0 && created.getValue() == 1) {
+            recordCreated(parent);
+        }
+        return ret;
+    }
+
+    /**
+     * Record the removal of the node just appended to PARENT
+     */
+    private void recordCreated(String parent) {
+        List<String> created = parent != null ? augeas.nodes(parent + "/*[last()]")
+                : new ArrayList<String>();
+        if (created.size() == 1) {
+            entries.add(new Entry(REMOVE, created.get(0), null, null, null, 0));
+        } else {
+            unrecorded(0);
+        }
+    }
+
+    /**
+     * Note that a change which succeeded, according to RET, is not in the
+     * undo log
+     */
+    private int unrecorded(int ret) {
+        if (ret >= 0) {
+            entries.add(new Entry(UNRECORDED, null, null, null, null, 0));
+        }
+        return ret;
+    }
+
+    /**
+     * Find the node below which aug_set would create the missing nodes of
+     * PATH: the node matched by the longest prefix of PATH that matches
+     * anything. Returns "" for the root, and null if that prefix matches
+     * more than one node.
+     */
+    private String existingParent(String path) {
+        if (!path.startsWith("/") && !path.startsWith("$")) {
+            String context = augeas.value("/augeas/context");
+            if (context == null) {
+                context = "";
+            }
+            while (context.endsWith("/")) {
+                context = context.substring(0, context.length() - 1);
+            }
+            path = context + "/" + path;
+        }
+        List<Integer> separators = separators(path);
+        for (int i = separators.size() - 1; i >= 0; i--) {
+            int end = separators.get(i);
+            if (end == 0) {
+                break;
+            }
+            List<String> nodes = augeas.nodes(path.substring(0, end));
+            if (nodes.size() == 1) {
+                return nodes.get(0);
+            } else if (nodes.size() > 1) {
+                return null;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * The positions of the slashes separating the steps of PATH, ignoring
+     * those in predicates, quotes and escapes
+     */
+    static List<Integer> separators(String path) {
+        List<Integer> result = new ArrayList<Integer>();
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '\\') {
+                i++;
+            } else if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+            } else if (c == '/' && depth == 0) {
+                result.add(i);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The path of the parent of the node at the canonical PATH; "" for the
+     * children of the root
+     */
+    static String parent(String path) {
+        List<Integer> separators = separators(path);
+        return separators.isEmpty() ? "" : path.substring(0, separators.get(separators.size() - 1));
+    }
+
+    private static boolean hasAncestorIn(String path, Set<String> nodes) {
+        for (String parent = parent(path); parent.length() > 0; parent = parent(parent)) {
+            if (nodes.contains(parent)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy the subtree at PATH below STASH
+     *
+     * @return the path of the copy, or null if copying failed
+     */
+    private String stash(String path) {
+        String copy = STASH + "/s" + stashCount++;
+        return augeas.AugLib.aug_cp(augeas.aug, path, copy) < 0 ? null : copy;
+    }
+
+    private void dropStashes(List<Entry> removed) {
+        for (Entry entry : removed) {
+            augeas.AugLib.aug_rm(augeas.aug, entry.stash);
+        }
+    }
+}
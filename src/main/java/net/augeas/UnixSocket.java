@@ -0,0 +1,205 @@
+package net.augeas;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.jna.LastErrorException;
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+import com.sun.jna.NativeLong;
+import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
+
+/**
+ * The client end of a Unix domain socket, used by {@link RemoteAug}.
+ *
+ * The socket is driven through the C library rather than a
+ * <tt>SocketChannel</tt>: interrupting a thread blocked on a channel
+ * closes the channel, which would take the worker away from every handle
+ * sharing it. A blocking <tt>read</tt> or <tt>write</tt> of the C library
+ * does not notice interrupts, and it needs no extra thread either.
+ *
+ * Reading and writing may happen at the same time on different threads,
+ * but each direction must only be used by one thread at a time.
+ */
+final class UnixSocket {
+
+    private static final int AF_UNIX = 1;
+    private static final int SOCK_STREAM = 1;
+    private static final int SHUT_RDWR = 2;
+    private static final int EINTR = 4;
+    // Linux only; elsewhere the JVM ignores SIGPIPE
+    private static final int MSG_NOSIGNAL = Platform.isLinux() ? 0x4000 : 0;
+
+    private static final class LibC {
+
+        static {
+            Native.register(Platform.C_LIBRARY_NAME);
+        }
+
+        static native int socket(int domain, int type, int protocol) throws LastErrorException;
+
+        static native int connect(int fd, Pointer address, int length) throws LastErrorException;
+
+        static native NativeLong read(int fd, Pointer buffer, NativeLong count) throws LastErrorException;
+
+        static native NativeLong send(int fd, Pointer buffer, NativeLong count, int flags)
+                throws LastErrorException;
+
+        static native int shutdown(int fd, int how) throws LastErrorException;
+
+        static native int close(int fd) throws LastErrorException;
+    }
+
+    private final int fd;
+    // The socket itself and every read or write in progress; the
+    // descriptor is closed once all of them are done, so that it can not
+    // be reused under a thread still blocked on it
+    private final AtomicInteger users = new AtomicInteger(1);
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Connect to the socket at PATH
+     */
+    UnixSocket(String path) throws IOException {
+        byte[] name = path.getBytes(StandardCharsets.UTF_8);
+        // struct sockaddr_un, whose path holds at least 104 bytes; the BSDs
+        // start it with a length byte
+        if (name.length >= 104) {
+            throw new IOException("Socket path too long: " + path);
+        }
+        Memory address = new Memory(2 + 108);
+        address.clear();
+        if (Platform.isLinux()) {
+            address.setShort(0, (short) AF_UNIX);
+        } else {
+            address.setByte(0, (byte) (2 + name.length + 1));
+            address.setByte(1, (byte) AF_UNIX);
+        }
+        address.write(2, name, 0, name.length);
+        try {
+            fd = LibC.socket(AF_UNIX, SOCK_STREAM, 0);
+        } catch (LastErrorException e) {
+            throw new IOException("socket failed: " + e.getMessage(), e);
+        }
+        try {
+            LibC.connect(fd, address, 2 + name.length + 1);
+        } catch (LastErrorException e) {
+            LibC.close(fd);
+            throw new IOException("connect to " + path + " failed: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Shut the socket down; threads blocked on it return at once
+     */
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            try {
+                LibC.shutdown(fd, SHUT_RDWR);
+            } catch (LastErrorException e) {
+                // not connected any more
+            }
+            release();
+        }
+    }
+
+    private void acquire() throws IOException {
+        for (int n = users.get(); ; n = users.get()) {
+            if (n == 0 || closed.get()) {
+                throw new IOException("Socket closed");
+            }
+            if (users.compareAndSet(n, n + 1)) {
+                return;
+            }
+        }
+    }
+
+    private void release() {
+        if (users.decrementAndGet() == 0) {
+            try {
+                LibC.close(fd);
+            } catch (LastErrorException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    InputStream getInputStream(int size) {
+        final Memory buffer = new Memory(size);
+        return new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                acquire();
+                try {
+                    while (true) {
+                        try {
+                            long count = Math.min(len, buffer.size());
+                            int n = LibC.read(fd, buffer, new NativeLong(count)).intValue();
+                            if (n == 0) {
+                                return -1;
+                            }
+                            buffer.read(0, b, off, n);
+                            return n;
+                        } catch (LastErrorException e) {
+                            if (e.getErrorCode() != EINTR) {
+                                throw new IOException("read failed: " + e.getMessage(), e);
+                            }
+                        }
+                    }
+                } finally {
+                    release();
+                }
+            }
+        };
+    }
+
+    OutputStream getOutputStream(int size) {
+        final Memory buffer = new Memory(size);
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                acquire();
+                try {
+                    while (len > 0) {
+                        int chunk = (int) Math.min(len, buffer.size());
+                        buffer.write(0, b, off, chunk);
+                        int done = 0;
+                        while (done < chunk) {
+                            try {
+                                done += LibC.send(fd, buffer.share(done), new NativeLong(chunk - done),
+                                        MSG_NOSIGNAL).intValue();
+                            } catch (LastErrorException e) {
+                                if (e.getErrorCode() != EINTR) {
+                                    throw new IOException("write failed: " + e.getMessage(), e);
+                                }
+                            }
+                        }
+                        off += chunk;
+                        len -= chunk;
+                    }
+                } finally {
+                    release();
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,128 @@
+package net.augeas;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A read-only view of an encoded string that is only decoded when its
+ * characters are needed.
+ *
+ * The bytes are decoded like every other string read from the augeas
+ * library, in JNA's default string encoding. That is UTF-8 unless the
+ * <tt>jna.encoding</tt> property or the platform says otherwise.
+ *
+ * Pure ASCII content, which covers nearly all paths and most values, is
+ * served straight from the underlying bytes, so reading characters or
+ * comparing with <tt>contentEquals</tt> does not create a String. Other
+ * content is decoded once, on first access.
+ *
+ * A view may refer to memory owned by the augeas library or reused by the
+ * binding; the method returning it states how long it stays valid. Call
+ * <tt>toString</tt> to keep a copy beyond that.
+ */
+public final class Utf8Sequence implements CharSequence {
+
+    // Whether bytes below 0x80 stand for the same ASCII char in the encoding
+    private static final boolean ASCII_COMPATIBLE = asciiCompatible();
+
+    private ByteBuffer bytes;
+    private boolean ascii;
+    private String decoded;
+
+    Utf8Sequence(ByteBuffer bytes) {
+        wrap(bytes);
+    }
+
+    /**
+     * Point this view at BYTES, from index 0 up to their limit
+     */
+    void wrap(ByteBuffer bytes) {
+        this.bytes = bytes;
+        this.decoded = null;
+        int limit = bytes.limit();
+        boolean ascii = ASCII_COMPATIBLE;
+        for (int i = 0; i < limit && ascii; i++) {
+            ascii = bytes.get(i) >= 0;
+        }
+        this.ascii = ascii;
+    }
+
+    public int length() {
+        return ascii ? bytes.limit() : toString().length();
+    }
+
+    public char charAt(int index) {
+        if (!ascii) {
+            return toString().charAt(index);
+        }
+        if (index < 0 || index >= bytes.limit()) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + bytes.limit());
+        }
+        return (char) bytes.get(index);
+    }
+
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+
+    /**
+     * The number of bytes in the encoded string, without the terminating NUL
+     */
+    public int byteLength() {
+        return bytes.limit();
+    }
+
+    /**
+     * The encoded string, without the terminating NUL
+     */
+    public ByteBuffer getBytes() {
+        return bytes.asReadOnlyBuffer();
+    }
+
+    /**
+     * Compare with CS character by character, without decoding ASCII
+     * content
+     */
+    public boolean contentEquals(CharSequence cs) {
+        if (!ascii) {
+            return toString().contentEquals(cs);
+        }
+        int length = bytes.limit();
+        if (cs.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (cs.charAt(i) != bytes.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        if (decoded == null) {
+            int length = bytes.limit();
+            if (bytes.hasArray()) {
+                decoded = new String(bytes.array(), bytes.arrayOffset(), length, NativeBuffers.ENCODING);
+            } else {
+                byte[] copy = new byte[length];
+                ByteBuffer dup = bytes.duplicate();
+                dup.position(0);
+                dup.get(copy);
+                decoded = new String(copy, NativeBuffers.ENCODING);
+            }
+        }
+        return decoded;
+    }
+
+    private static boolean asciiCompatible() {
+        byte[] bytes = new byte[0x80];
+        char[] chars = new char[0x80];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) i;
+            chars[i] = (char) i;
+        }
+        return Arrays.equals(new String(bytes, NativeBuffers.ENCODING).toCharArray(), chars);
+    }
+}
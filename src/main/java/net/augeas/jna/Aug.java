@@ -23,6 +23,7 @@ package net.augeas.jna;
 
 import com.sun.jna.Library;
 import com.sun.jna.Native;
+import com.sun.jna.Pointer;
 import com.sun.jna.StringArray;
 import com.sun.jna.ptr.IntByReference;
 import com.sun.jna.ptr.PointerByReference;
@@ -36,6 +37,8 @@ public interface Aug extends Library {
 
     int aug_close(AugPointer aug);
 
+    int aug_cp(AugPointer aug, String src, String dest);
+
     int aug_defnode(AugPointer aug, String name, String expr, String value, IntByReference created);
 
     int aug_defvar(AugPointer aug, String name, String expr);
@@ -50,14 +53,29 @@ public interface Aug extends Library {
 
     int aug_get(AugPointer aug, String path, StringArray value);
 
+    /*
+     * The variants taking a Pointer expect NUL terminated strings already
+     * in native memory, in JNA's default string encoding like the String
+     * arguments. The value returned by aug_get
+     * points into the tree and must not be freed.
+     */
+    int aug_get(AugPointer aug, Pointer path, PointerByReference value);
+
     AugPointer aug_init(String root, String loadpath, int flags);
 
     int aug_insert(AugPointer aug, String path, String label, int before);
 
     int aug_load(AugPointer aug);
 
+    int aug_load_file(AugPointer aug, String file);
+
     int aug_match(AugPointer aug, String path, PointerByReference matches);
 
+    int aug_match(AugPointer aug, Pointer path, PointerByReference matches);
+
+    int aug_ns_attr(AugPointer aug, String var, int i, PointerByReference value,
+                    PointerByReference label, PointerByReference filePath);
+
     int aug_mv(AugPointer aug, String src, String dest);
 
     int aug_rm(AugPointer aug, String path);
@@ -66,10 +84,21 @@ public interface Aug extends Library {
 
     int aug_set(AugPointer aug, String path, String value);
 
+    int aug_set(AugPointer aug, Pointer path, Pointer value);
+
     int aug_setm(AugPointer aug, String base, String sub, String value);
 
     int aug_span(AugPointer aug, String path, PointerByReference filename,
                  IntByReference labelStart, IntByReference labelEnd,
                  IntByReference valueStart, IntByReference valueEnd,
                  IntByReference spanStart, IntByReference spanEnd);
-}
\ No newline at end of file
+
+    /*
+     * Takes the six int out parameters as pointers, so that a caller can
+     * point them into one block of memory it reuses across calls
+     */
+    int aug_span(AugPointer aug, Pointer path, PointerByReference filename,
+                 Pointer labelStart, Pointer labelEnd,
+                 Pointer valueStart, Pointer valueEnd,
+                 Pointer spanStart, Pointer spanEnd);
+}
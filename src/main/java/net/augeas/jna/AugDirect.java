@@ -0,0 +1,223 @@
+/*
+ * AugDirect.java
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307  USA
+ */
+package net.augeas.jna;
+
+import com.sun.jna.Native;
+import com.sun.jna.Pointer;
+import com.sun.jna.StringArray;
+import com.sun.jna.ptr.IntByReference;
+import com.sun.jna.ptr.PointerByReference;
+
+/**
+ * Direct mapping of the c code to JNA.
+ *
+ * The functions are registered as static natives with
+ * <tt>Native.register</tt>, which avoids the reflection and argument
+ * boxing of the interface proxy returned by <tt>Native.loadLibrary</tt>.
+ * Pass {@link #INSTANCE} to the <tt>Augeas</tt> constructor to use it.
+ */
+public class AugDirect implements Aug {
+
+    public static final AugDirect INSTANCE = new AugDirect();
+
+    /**
+     * Holder for the native methods; they can not live on AugDirect
+     * itself since they share their signatures with the Aug methods.
+     */
+    private static class Natives {
+
+        static {
+            Native.register("augeas");
+        }
+
+        static native int aug_close(AugPointer aug);
+
+        static native int aug_cp(AugPointer aug, String src, String dest);
+
+        static native int aug_defnode(AugPointer aug, String name, String expr, String value, IntByReference created);
+
+        static native int aug_defvar(AugPointer aug, String name, String expr);
+
+        static native int aug_error(AugPointer aug);
+
+        static native String aug_error_details(AugPointer aug);
+
+        static native String aug_error_message(AugPointer aug);
+
+        static native String aug_error_minor_message(AugPointer aug);
+
+        static native int aug_get(AugPointer aug, String path, Pointer value);
+
+        static native int aug_get(AugPointer aug, Pointer path, PointerByReference value);
+
+        static native AugPointer aug_init(String root, String loadpath, int flags);
+
+        static native int aug_insert(AugPointer aug, String path, String label, int before);
+
+        static native int aug_load(AugPointer aug);
+
+        static native int aug_load_file(AugPointer aug, String file);
+
+        static native int aug_match(AugPointer aug, String path, PointerByReference matches);
+
+        static native int aug_match(AugPointer aug, Pointer path, PointerByReference matches);
+
+        static native int aug_ns_attr(AugPointer aug, String var, int i, PointerByReference value,
+                                      PointerByReference label, PointerByReference filePath);
+
+        static native int aug_mv(AugPointer aug, String src, String dest);
+
+        static native int aug_rm(AugPointer aug, String path);
+
+        static native int aug_save(AugPointer aug);
+
+        static native int aug_set(AugPointer aug, String path, String value);
+
+        static native int aug_set(AugPointer aug, Pointer path, Pointer value);
+
+        static native int aug_setm(AugPointer aug, String base, String sub, String value);
+
+        static native int aug_span(AugPointer aug, String path, PointerByReference filename,
+                                   IntByReference labelStart, IntByReference labelEnd,
+                                   IntByReference valueStart, IntByReference valueEnd,
+                                   IntByReference spanStart, IntByReference spanEnd);
+
+        static native int aug_span(AugPointer aug, Pointer path, PointerByReference filename,
+                                   Pointer labelStart, Pointer labelEnd,
+                                   Pointer valueStart, Pointer valueEnd,
+                                   Pointer spanStart, Pointer spanEnd);
+    }
+
+    protected AugDirect() {
+    }
+
+    public int aug_close(AugPointer aug) {
+        return Natives.aug_close(aug);
+    }
+
+    public int aug_cp(AugPointer aug, String src, String dest) {
+        return Natives.aug_cp(aug, src, dest);
+    }
+
+    public int aug_defnode(AugPointer aug, String name, String expr, String value, IntByReference created) {
+        return Natives.aug_defnode(aug, name, expr, value, created);
+    }
+
+    public int aug_defvar(AugPointer aug, String name, String expr) {
+        return Natives.aug_defvar(aug, name, expr);
+    }
+
+    public int aug_error(AugPointer aug) {
+        return Natives.aug_error(aug);
+    }
+
+    public String aug_error_details(AugPointer aug) {
+        return Natives.aug_error_details(aug);
+    }
+
+    public String aug_error_message(AugPointer aug) {
+        return Natives.aug_error_message(aug);
+    }
+
+    public String aug_error_minor_message(AugPointer aug) {
+        return Natives.aug_error_minor_message(aug);
+    }
+
+    public int aug_get(AugPointer aug, String path, StringArray value) {
+        int ret = Natives.aug_get(aug, path, value);
+        // Direct calls skip the post-call hook that copies the result
+        // back into the String[] wrapped by the StringArray
+        if (value != null) {
+            value.read();
+        }
+        return ret;
+    }
+
+    public int aug_get(AugPointer aug, Pointer path, PointerByReference value) {
+        return Natives.aug_get(aug, path, value);
+    }
+
+    public AugPointer aug_init(String root, String loadpath, int flags) {
+        return Natives.aug_init(root, loadpath, flags);
+    }
+
+    public int aug_insert(AugPointer aug, String path, String label, int before) {
+        return Natives.aug_insert(aug, path, label, before);
+    }
+
+    public int aug_load(AugPointer aug) {
+        return Natives.aug_load(aug);
+    }
+
+    public int aug_load_file(AugPointer aug, String file) {
+        return Natives.aug_load_file(aug, file);
+    }
+
+    public int aug_match(AugPointer aug, String path, PointerByReference matches) {
+        return Natives.aug_match(aug, path, matches);
+    }
+
+    public int aug_match(AugPointer aug, Pointer path, PointerByReference matches) {
+        return Natives.aug_match(aug, path, matches);
+    }
+
+    public int aug_ns_attr(AugPointer aug, String var, int i, PointerByReference value,
+                           PointerByReference label, PointerByReference filePath) {
+        return Natives.aug_ns_attr(aug, var, i, value, label, filePath);
+    }
+
+    public int aug_mv(AugPointer aug, String src, String dest) {
+        return Natives.aug_mv(aug, src, dest);
+    }
+
+    public int aug_rm(AugPointer aug, String path) {
+        return Natives.aug_rm(aug, path);
+    }
+
+    public int aug_save(AugPointer aug) {
+        return Natives.aug_save(aug);
+    }
+
+    public int aug_set(AugPointer aug, String path, String value) {
+        return Natives.aug_set(aug, path, value);
+    }
+
+    public int aug_set(AugPointer aug, Pointer path, Pointer value) {
+        return Natives.aug_set(aug, path, value);
+    }
+
+    public int aug_setm(AugPointer aug, String base, String sub, String value) {
+        return Natives.aug_setm(aug, base, sub, value);
+    }
+
+    public int aug_span(AugPointer aug, String path, PointerByReference filename,
+                        IntByReference labelStart, IntByReference labelEnd,
+                        IntByReference valueStart, IntByReference valueEnd,
+                        IntByReference spanStart, IntByReference spanEnd) {
+        return Natives.aug_span(aug, path, filename, labelStart, labelEnd,
+                valueStart, valueEnd, spanStart, spanEnd);
+    }
+
+    public int aug_span(AugPointer aug, Pointer path, PointerByReference filename,
+                        Pointer labelStart, Pointer labelEnd,
+                        Pointer valueStart, Pointer valueEnd,
+                        Pointer spanStart, Pointer spanEnd) {
+        return Natives.aug_span(aug, path, filename, labelStart, labelEnd,
+                valueStart, valueEnd, spanStart, spanEnd);
+    }
+}
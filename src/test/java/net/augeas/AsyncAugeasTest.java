@@ -0,0 +1,53 @@
+package net.augeas;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+public class AsyncAugeasTest extends TestCase {
+
+    public void testOperations() throws Exception {
+        AsyncAugeas aug = new AsyncAugeas("/dev/null", null, Augeas.NO_LOAD);
+        aug.set("/a/b", "one");
+        aug.set("/a/c", "two");
+        CompletableFuture<String> value = aug.get("/a/b");
+        CompletableFuture<List<String>> matches = aug.match("/a/*");
+        assertEquals("one", value.get());
+        assertEquals(2, matches.get().size());
+        assertEquals(Boolean.TRUE, aug.exists("/a/c").get());
+
+        BatchResult result = aug.apply(aug.batch().rm("/a/b").set("/a/d", "three")).get();
+        assertTrue(result.isSuccess());
+        assertEquals("three", aug.get("/a/d").get());
+        assertEquals(Integer.valueOf(0), aug.close().get());
+        assertTrue(aug.isClosed());
+    }
+
+    public void testFailures() throws Exception {
+        AsyncAugeas aug = new AsyncAugeas("/dev/null", null, Augeas.NO_LOAD);
+        try {
+            aug.get("SOME INVALID GOOFY PATH").get();
+            fail("An exception should be thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AugeasException);
+        }
+        aug.close().get();
+        try {
+            aug.get("/augeas/root").get();
+            fail("An exception should be thrown");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AugeasException);
+        }
+    }
+
+    public void testCloseStopsWorker() throws Exception {
+        for (int i = 0; i < 20; i++) {
+            AsyncAugeas aug = new AsyncAugeas("/dev/null", null, Augeas.NO_LOAD);
+            aug.close().get();
+            aug.getWorker().join(5000);
+            assertFalse("worker should terminate", aug.getWorker().isAlive());
+        }
+    }
+}
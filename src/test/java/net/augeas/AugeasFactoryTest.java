@@ -0,0 +1,58 @@
+package net.augeas;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+
+import net.augeas.jna.Aug;
+
+public class AugeasFactoryTest extends TestCase {
+
+    public void testTake() throws Exception {
+        File root = AugeasTest.createRoot("127.0.0.1 localhost\n");
+        LoadPlan plan = new LoadPlan().lens("Hosts.lns", "/etc/hosts");
+        AugeasFactory factory = new AugeasFactory(plan, root.getPath(), null, Augeas.NONE,
+                Aug.INSTANCE, 2);
+        try {
+            for (int i = 0; i < 3; i++) {
+                Augeas aug = factory.take();
+                assertEquals("localhost", aug.get("/files/etc/hosts/1/canonical"));
+                aug.set("/files/etc/hosts/1/canonical", "changed");
+                aug.close();
+            }
+            assertEquals(3, factory.getHits() + factory.getMisses());
+            assertTrue(factory.getHits() >= 1);
+            assertNull(factory.getLastError());
+        } finally {
+            factory.close();
+            AugeasTest.deleteRoot(root);
+        }
+        assertEquals(0, factory.getReadyCount());
+        try {
+            factory.take();
+            fail("Closed factory should not hand out handles");
+        } catch (AugeasException e) {
+            // expected
+        }
+    }
+
+    public void testTakeReloadsChangedFiles() throws Exception {
+        File root = AugeasTest.createRoot("127.0.0.1 localhost\n");
+        LoadPlan plan = new LoadPlan().lens("Hosts.lns", "/etc/hosts");
+        AugeasFactory factory = new AugeasFactory(plan, root.getPath(), null, Augeas.NONE,
+                Aug.INSTANCE, 1);
+        try {
+            File hosts = new File(root, "etc/hosts");
+            AugeasTest.writeFile(hosts, "127.0.0.1 changed\n");
+            // The mtime has a resolution of a second
+            hosts.setLastModified(hosts.lastModified() + 5000);
+            Augeas aug = factory.take();
+            assertEquals(1, factory.getHits());
+            assertEquals("changed", aug.get("/files/etc/hosts/1/canonical"));
+            aug.close();
+        } finally {
+            factory.close();
+            AugeasTest.deleteRoot(root);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package net.augeas;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.TimeUnit;
+
+public class AugeasPoolTest extends TestCase {
+
+    public void testBorrowAndReset() {
+        AugeasPool pool = new AugeasPool(1, "/dev/null", null, Augeas.NO_LOAD);
+        Augeas aug = pool.borrow(1, TimeUnit.SECONDS);
+        aug.set("/java/test", "value");
+        aug.setRaiseExceptions(false);
+        pool.release(aug);
+
+        Augeas again = pool.borrow(1, TimeUnit.SECONDS);
+        assertSame(aug, again);
+        assertFalse("reset removes nodes", again.exists("/java/test"));
+        assertTrue("reset restores exceptions", again.getRaiseExceptions());
+        pool.release(again);
+
+        AugeasPool.Statistics stats = pool.getStatistics();
+        assertEquals(2, stats.getBorrows());
+        assertEquals(0, stats.getInUse());
+        pool.close();
+    }
+
+    public void testResetDiscardsState() {
+        AugeasPool pool = new AugeasPool(1, "/dev/null", null, Augeas.NO_LOAD);
+        Augeas aug = pool.borrow(1, TimeUnit.SECONDS);
+        aug.set("/files/etc/hosts/1/ipaddr", "127.0.0.1");
+        aug.defineVariable("hosts", "/files/etc/hosts");
+        aug.enableExpressionCache(10);
+        aug.setTrackChanges(true);
+        aug.setReuseNativeBuffers(true);
+        pool.release(aug);
+
+        Augeas again = pool.borrow(1, TimeUnit.SECONDS);
+        assertSame(aug, again);
+        assertFalse("reset removes files", again.exists("/files/etc"));
+        try {
+            again.match("$hosts");
+            fail("reset undefines variables");
+        } catch (AugeasException e) {
+            // Good.
+        }
+        assertNull(again.getExpressionCache());
+        assertFalse(again.getReuseNativeBuffers());
+        pool.release(again);
+        pool.close();
+    }
+
+    public void testChangedSettingsReplaceHandle() {
+        AugeasPool pool = new AugeasPool(1, "/dev/null", null, Augeas.NO_LOAD);
+        Augeas aug = pool.borrow(1, TimeUnit.SECONDS);
+        String mode = aug.get("/augeas/save");
+        aug.set("/augeas/save", "noop");
+        pool.release(aug);
+
+        Augeas again = pool.borrow(1, TimeUnit.SECONDS);
+        assertNotSame(aug, again);
+        assertEquals(mode, again.get("/augeas/save"));
+        assertEquals(1, pool.getStatistics().getReplaced());
+        pool.release(again);
+        pool.close();
+    }
+
+    public void testFailedReplacement() {
+        final boolean[] failing = new boolean[1];
+        AugeasPool pool = new AugeasPool(1, "/dev/null", null, Augeas.NO_LOAD) {
+            @Override
+            protected Augeas newHandle() {
+                if (failing[0]) {
+                    throw new AugeasException("No handle");
+                }
+                return super.newHandle();
+            }
+        };
+        Augeas aug = pool.borrow(1, TimeUnit.SECONDS);
+        aug.set("/augeas/save", "noop");
+        failing[0] = true;
+        pool.release(aug);
+        failing[0] = false;
+
+        Augeas again = pool.borrow(1, TimeUnit.SECONDS);
+        assertNotSame(aug, again);
+        pool.release(again);
+        assertSame(again, pool.borrow(1, TimeUnit.SECONDS));
+        pool.release(again);
+        pool.close();
+    }
+
+    public void testTimeout() {
+        AugeasPool pool = new AugeasPool(1, "/dev/null", null, Augeas.NO_LOAD);
+        Augeas aug = pool.borrow(1, TimeUnit.SECONDS);
+        try {
+            pool.borrow(10, TimeUnit.MILLISECONDS);
+            fail("An exception should be thrown");
+        } catch (AugeasException e) {
+            // Good.
+        }
+        assertEquals(1, pool.getStatistics().getTimeouts());
+        assertEquals(1, pool.getStatistics().getInUse());
+        pool.release(aug);
+        pool.close();
+    }
+
+    public void testWithHandle() {
+        AugeasPool pool = new AugeasPool(2, "/dev/null", null, Augeas.NO_LOAD);
+        String root = pool.withHandle(new AugeasCallback<String>() {
+            public String call(Augeas aug) {
+                return aug.get("/augeas/root");
+            }
+        }, 1, TimeUnit.SECONDS);
+        assertNotNull(root);
+        assertEquals(0, pool.getStatistics().getInUse());
+        pool.close();
+    }
+}
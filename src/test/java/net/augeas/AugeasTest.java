@@ -2,12 +2,27 @@ package net.augeas;
 
 import junit.framework.TestCase;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 public class AugeasTest extends TestCase {
 
+    /**
+     * Creates the handle under test; subclasses override this to run the
+     * suite against another mapping of the library.
+     */
+    protected Augeas newAugeas(String root, String loadpath, int flags) {
+        return new Augeas(root, loadpath, flags);
+    }
+
     public void testBasics() {
-        Augeas aug = new Augeas(Augeas.SAVE_NEWFILE);
+        Augeas aug = newAugeas("/", "", Augeas.SAVE_NEWFILE);
         assertEquals("newfile", "newfile", aug.get("/augeas/save"));
         assertNotNull("/augeas/root", aug.get("/augeas/root"));
         assertTrue("/augeas/root exists", aug.exists("/augeas/root"));
@@ -24,7 +39,7 @@ public class AugeasTest extends TestCase {
     }
 
     public void testErrorAPI() {
-        Augeas aug = new Augeas();
+        Augeas aug = newAugeas("/", "", Augeas.NONE);
         List<String> matches = aug.match("/JarJarBinks");
         assertTrue("No Error", aug.lastError() == AugeasErrorCode.NO_ERROR);
         assertEquals("No error", aug.lastErrorMessage());
@@ -39,7 +54,7 @@ public class AugeasTest extends TestCase {
     }
 
     public void testLoad() {
-        Augeas aug = new Augeas(Augeas.NO_LOAD);
+        Augeas aug = newAugeas("/", "", Augeas.NO_LOAD);
         assertTrue("Empty", aug.match("/files/etc/*").isEmpty());
         aug.clearTransforms();
         aug.load();
@@ -47,22 +62,418 @@ public class AugeasTest extends TestCase {
     }
 
     public void testMove() {
-        Augeas aug = new Augeas("/dev/null", null, 0);
+        Augeas aug = newAugeas("/dev/null", null, 0);
         aug.set("/a/b", "value");
         aug.move("/a/b", "/x/y");
         assertEquals("value", "value", aug.get("/x/y"));
         aug.close();
     }
 
+    public void testDump() {
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        aug.set("/a/b", "value");
+        aug.set("/a/c[1]", "one");
+        aug.set("/a/c[2]", "two");
+        DumpResult dump = aug.dump("/a");
+        assertEquals(4, dump.size());
+        assertEquals("/a", dump.getPath(0));
+        assertNull(dump.getValue(0));
+        assertEquals("/a/b", dump.getPath(1));
+        assertEquals("b", dump.getLabel(1));
+        assertEquals("value", dump.getValue(1));
+        assertEquals("/a/c[2]", dump.getPath(3));
+        assertEquals("c", dump.getLabel(3));
+        assertEquals("two", dump.getValue(3));
+        assertTrue(aug.dump("/nothing").isEmpty());
+        aug.close();
+    }
+
+    public void testExpressionCache() {
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        ExpressionCache cache = aug.enableExpressionCache(2);
+        aug.set("/a/b", "one");
+        assertEquals("one", aug.get("/a/b"));
+        assertEquals("one", aug.get("/a/b"));
+        assertEquals("one", aug.get("/a/b"));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+
+        // A modification rebinds the variable on the next read
+        aug.set("/a/b", "two");
+        assertEquals("two", aug.get("/a/b"));
+        aug.set("/a/c", "three");
+        assertEquals(2, aug.match("/a/*").size());
+        assertEquals(2, aug.match("/a/*").size());
+        assertTrue(aug.exists("/a/c"));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+        // Expressions using variables follow the variables' values
+        aug.defineVariable("v", "'b'");
+        assertEquals("two", aug.get("/a/*[label() = $v]"));
+        aug.defineVariable("v", "'c'");
+        assertEquals("three", aug.get("/a/*[label() = $v]"));
+        assertEquals("three", aug.get("/a/*[label() = $v]"));
+
+        aug.disableExpressionCache();
+        assertNull(aug.getExpressionCache());
+        assertEquals("two", aug.get("/a/b"));
+        aug.close();
+    }
+
+    public void testTransaction() {
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        aug.set("/a/b[1]", "one");
+        aug.set("/a/b[2]", "two");
+        aug.set("/a/b[2]/c", "three");
+        aug.set("/a/d", "four");
+
+        Transaction tx = aug.beginTransaction();
+        aug.set("/a/b[1]", "changed");
+        int savepoint = tx.savepoint();
+        aug.rm("/a/b");
+        aug.insert("/a/d", "e", true);
+        aug.move("/a/d", "/x/y");
+        aug.set("/a/f/g", "new");
+        assertFalse(aug.exists("/a/b"));
+        assertEquals("four", aug.get("/x/y"));
+
+        tx.rollbackTo(savepoint);
+        assertTrue(tx.isActive());
+        assertEquals("changed", aug.get("/a/b[1]"));
+        assertEquals("three", aug.get("/a/b[2]/c"));
+        assertEquals("four", aug.get("/a/d"));
+        assertFalse(aug.exists("/x"));
+        assertEquals(3, aug.match("/a/*").size());
+        assertEquals("/a/d", aug.match("/a/*").get(2));
+
+        try {
+            aug.load();
+            fail("load should not be allowed during a transaction");
+        } catch (AugeasException e) {
+            // expected
+        }
+
+        tx.rollback();
+        assertFalse(tx.isActive());
+        assertNull(aug.getTransaction());
+        assertEquals("one", aug.get("/a/b[1]"));
+        assertEquals(0, aug.match(Transaction.STASH).size());
+        aug.close();
+    }
+
+    public void testReuseNativeBuffers() {
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        aug.setReuseNativeBuffers(true);
+        String value = "caf\u00e9 \u20ac \ud83d\ude00";
+        aug.set("/a/b", value);
+        aug.set("/a/c", "plain");
+        assertEquals(value, aug.get("/a/b"));
+        // Both paths use the same encoding
+        aug.setReuseNativeBuffers(false);
+        assertEquals(value, aug.get("/a/b"));
+        assertEquals(value, aug.dump("/a/b").getValue(0));
+        aug.setReuseNativeBuffers(true);
+        assertTrue(aug.exists("/a/c"));
+        assertEquals(2, aug.match("/a/*").size());
+
+        Utf8Sequence view = aug.getValue("/a/c");
+        assertTrue(view.contentEquals("plain"));
+        assertEquals(5, view.byteLength());
+        assertEquals(value, aug.getValue("/a/b").toString());
+        assertNull(aug.getValue("/a/d"));
+
+        MatchIterator matches = aug.matchIterator("/a/*");
+        assertTrue(matches.nextView().contentEquals("/a/b"));
+        assertEquals("/a/c", matches.nextView().toString());
+        assertFalse(matches.hasNext());
+        aug.close();
+    }
+
+    public void testMatchIterator() {
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        aug.set("/a/b[1]", "one");
+        aug.set("/a/b[2]", "two");
+        aug.set("/a/b[3]", "three");
+        MatchIterator matches = aug.matchIterator("/a/b");
+        assertEquals(3, matches.size());
+        assertEquals("/a/b[1]", matches.next());
+        assertEquals("/a/b[2]", matches.next());
+        matches.close();
+        assertFalse(matches.hasNext());
+        matches.close();
+
+        matches = aug.matchIterator("/nothing");
+        assertFalse(matches.hasNext());
+        aug.close();
+    }
+
+    public void testSnapshot() {
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        aug.set("/a/b", "value");
+        aug.set("/a/c[1]", "one");
+        aug.set("/a/c[2]", "two");
+        AugeasSnapshot snap = aug.snapshot("/a");
+        aug.set("/a/b", "changed");
+        assertEquals("value", snap.get("/a/b"));
+        assertEquals("two", snap.get("/a/c[2]"));
+        assertNull(snap.get("/a/d"));
+        assertEquals(aug.match("/a/*"), snap.match("/a/*"));
+        assertEquals(2, snap.match("/a/c").size());
+        assertEquals(3, snap.children("/a").size());
+        try {
+            snap.get("/a/c");
+            fail("An exception should be thrown");
+        } catch (AugeasException e) {
+            // Good.
+        }
+        aug.load();
+        assertFalse(snap.isValid());
+        aug.close();
+    }
+
+    public void testBatch() {
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        BatchResult result = aug.batch()
+                .set("/a/b", "one")
+                .set("/a/c", "two")
+                .insert("/a/b", "d", true)
+                .move("/a/c", "/a/e")
+                .rm("/a/b")
+                .apply();
+        assertTrue(result.isSuccess());
+        assertEquals(5, result.getApplied());
+        assertEquals(aug.match("/a/*").toString(), "[/a/d, /a/e]");
+        assertEquals("two", aug.get("/a/e"));
+
+        result = aug.batch()
+                .set("/a/*", "many")
+                .set("/a/f", "after")
+                .apply();
+        assertFalse(result.isSuccess());
+        assertTrue(result.isFailed(0));
+        assertNotNull(result.getError(0));
+        assertEquals(0, result.getReturn(1));
+        assertEquals("after", aug.get("/a/f"));
+
+        result = aug.batch()
+                .stopOnFailure(true)
+                .set("/a/*", "many")
+                .set("/a/g", "skipped")
+                .apply();
+        assertEquals(1, result.getApplied());
+        assertEquals(0, result.getFirstFailure());
+        assertFalse(aug.exists("/a/g"));
+        aug.close();
+    }
+
+    public void testLoadChanged() throws IOException {
+        File root = createRoot("127.0.0.1 localhost\n");
+        try {
+            Augeas aug = newAugeas(root.getPath(), null, Augeas.NO_MODL_AUTOLOAD | Augeas.NO_LOAD);
+            aug.transform("Hosts.lns", "Hosts", Arrays.asList("/etc/hosts"), null);
+            aug.load();
+            assertTrue("unchanged", aug.loadChanged().isEmpty());
+
+            File hosts = new File(root, "etc/hosts");
+            writeFile(hosts, "127.0.0.1 localhost\n10.0.0.1 other\n");
+            hosts.setLastModified(hosts.lastModified() + 10000);
+            Set<String> changed = aug.loadChanged();
+            assertEquals(1, changed.size());
+            assertTrue(changed.contains("/etc/hosts"));
+            assertEquals("other", aug.get("/files/etc/hosts/2/canonical"));
+            assertTrue("reloaded", aug.loadChanged().isEmpty());
+            aug.close();
+        } finally {
+            deleteRoot(root);
+        }
+    }
+
+    public void testLoadChangedMtimeDirectory() throws IOException {
+        File root = createRoot("127.0.0.1 localhost\n");
+        try {
+            new File(root, "etc/mtime").mkdirs();
+            writeFile(new File(root, "etc/mtime/hosts"), "127.0.0.1 localhost\n");
+            Augeas aug = newAugeas(root.getPath(), null, Augeas.NO_MODL_AUTOLOAD | Augeas.NO_LOAD);
+            aug.transform("Hosts.lns", "Hosts", Arrays.asList("/etc/hosts", "/etc/mtime/hosts"), null);
+            aug.load();
+            assertTrue("unchanged", aug.loadChanged().isEmpty());
+
+            File hosts = new File(root, "etc/mtime/hosts");
+            hosts.setLastModified(hosts.lastModified() + 10000);
+            Set<String> changed = aug.loadChanged();
+            assertEquals(1, changed.size());
+            assertTrue(changed.contains("/etc/mtime/hosts"));
+            aug.close();
+        } finally {
+            deleteRoot(root);
+        }
+    }
+
+    public void testLoadFile() throws IOException {
+        File root = createRoot("127.0.0.1 localhost\n");
+        try {
+            Augeas aug = newAugeas(root.getPath(), null, Augeas.NO_LOAD);
+            assertFalse(aug.exists("/files/etc/hosts"));
+            assertEquals(0, aug.loadFile("/etc/hosts"));
+            assertEquals("localhost", aug.get("/files/etc/hosts/1/canonical"));
+            assertEquals(1, aug.match("/augeas/files/*").size());
+
+            aug.setRaiseExceptions(false);
+            assertEquals(-1, aug.loadFiles(Arrays.asList("/etc/hosts", "/no/lens/for/this")));
+            assertEquals("localhost", aug.get("/files/etc/hosts/1/canonical"));
+            aug.close();
+        } finally {
+            deleteRoot(root);
+        }
+    }
+
+    public void testPendingChanges() throws IOException {
+        File root = createRoot("127.0.0.1 localhost\n");
+        try {
+            Augeas aug = newAugeas(root.getPath(), null, Augeas.NO_MODL_AUTOLOAD | Augeas.NO_LOAD);
+            aug.transform("Hosts.lns", "Hosts", Arrays.asList("/etc/hosts"), null);
+            aug.load();
+            aug.setTrackChanges(true);
+            assertTrue(aug.pendingChanges().isEmpty());
+
+            aug.set("/files/etc/hosts/1/canonical", "changed");
+            aug.set("/scratch/node", "value");
+            aug.rm("/files/etc/hosts/*/alias");
+            PendingChanges changes = aug.pendingChanges();
+            assertEquals(2, changes.size());
+            assertEquals(Collections.singleton("/etc/hosts"), changes.getFiles());
+            assertEquals("set", changes.getChanges().get(0).getOperation());
+            assertTrue(changes.getChanges().get(1).getFiles().isEmpty());
+
+            aug.save();
+            assertTrue(aug.pendingChanges().isEmpty());
+            aug.close();
+        } finally {
+            deleteRoot(root);
+        }
+    }
+
+    public void testSaveParallel() throws IOException {
+        File root = createRoot("127.0.0.1 localhost\n");
+        try {
+            writeFile(new File(root, "etc/hosts.other"), "10.0.0.1 other\n");
+            Augeas aug = newAugeas(root.getPath(), null, Augeas.NO_MODL_AUTOLOAD | Augeas.NO_LOAD);
+            aug.transform("Hosts.lns", "Hosts", Arrays.asList("/etc/hosts", "/etc/hosts.other"), null);
+            aug.load();
+            aug.set("/files/etc/hosts/1/canonical", "first");
+            aug.set("/files/etc/hosts.other/1/canonical", "second");
+            assertEquals(0, aug.saveParallel(2));
+            aug.close();
+
+            Augeas check = newAugeas(root.getPath(), null, Augeas.NO_MODL_AUTOLOAD | Augeas.NO_LOAD);
+            check.transform("Hosts.lns", "Hosts", Arrays.asList("/etc/hosts", "/etc/hosts.other"), null);
+            check.load();
+            assertEquals("first", check.get("/files/etc/hosts/1/canonical"));
+            assertEquals("second", check.get("/files/etc/hosts.other/1/canonical"));
+            check.close();
+        } finally {
+            deleteRoot(root);
+        }
+    }
+
+    public void testSaveParallelNewfile() throws IOException {
+        File root = createRoot("127.0.0.1 localhost\n");
+        try {
+            Augeas aug = newAugeas(root.getPath(), null,
+                    Augeas.NO_MODL_AUTOLOAD | Augeas.NO_LOAD | Augeas.SAVE_NEWFILE);
+            aug.transform("Hosts.lns", "Hosts", Arrays.asList("/etc/hosts"), null);
+            aug.load();
+            aug.set("/files/etc/hosts/1/canonical", "changed");
+            assertEquals(0, aug.saveParallel(2));
+            assertEquals("changed", aug.get("/files/etc/hosts/1/canonical"));
+            assertTrue(new File(root, "etc/hosts.augnew").exists());
+            aug.close();
+        } finally {
+            deleteRoot(root);
+        }
+    }
+
+    public void testSaveParallelNoop() throws IOException {
+        File root = createRoot("127.0.0.1 localhost\n");
+        try {
+            Augeas aug = newAugeas(root.getPath(), null, Augeas.NO_MODL_AUTOLOAD | Augeas.NO_LOAD);
+            aug.transform("Hosts.lns", "Hosts", Arrays.asList("/etc/hosts"), null);
+            aug.load();
+            aug.set("/augeas/save", "noop");
+            aug.set("/files/etc/hosts/1/canonical", "changed");
+            assertEquals(0, aug.saveParallel(2));
+            assertEquals("changed", aug.get("/files/etc/hosts/1/canonical"));
+            assertEquals(1, aug.match("/augeas/events/saved").size());
+            aug.close();
+        } finally {
+            deleteRoot(root);
+        }
+    }
+
     public void testSomeFailures() {
-        Augeas aug = new Augeas();
+        Augeas aug = newAugeas("/", "", Augeas.NONE);
         List<String> matches = aug.match("/JarJarBinks");
         assertTrue("empty", matches.isEmpty());
         assertNull("bad Get", aug.get("/Some/Bad/Path"));
     }
 
+    public void testErrorSnapshot() {
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        try {
+            aug.get("SOME INVALID GOOFY PATH");
+            fail("Invalid path should raise");
+        } catch (AugeasException e) {
+            assertEquals(AugeasErrorCode.PATH_ERROR, e.getErrorCode());
+            assertNotNull(e.getError().getMessage());
+            assertTrue(e.getMessage().startsWith("get failed: " + e.getError().getMessage()));
+        }
+        assertFalse(aug.tryExists("SOME INVALID GOOFY PATH"));
+        assertEquals(-1, aug.getLastReturn());
+        AugeasError error = aug.getError();
+        assertEquals(AugeasErrorCode.PATH_ERROR, error.getCode());
+        assertEquals(aug.lastErrorDetails(), error.getDetails());
+
+        aug.set("/a", "value");
+        assertTrue(aug.tryExists("/a"));
+        assertFalse(aug.getError().isError());
+        aug.close();
+    }
+
+    public void testTryWithResources() {
+        Augeas outer;
+        try (Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD)) {
+            aug.set("/a", "value");
+            outer = aug;
+        }
+        assertEquals(0, outer.getLastReturn());
+        try {
+            outer.get("/a");
+            fail("An exception should be thrown");
+        } catch (AugeasException e) {
+            // Good.
+        }
+        // Closing twice is harmless
+        outer.close();
+    }
+
+    public void testHandleTracker() {
+        HandleTracker tracker = HandleTracker.getInstance();
+        boolean enabled = tracker.isEnabled();
+        tracker.setEnabled(true);
+        try {
+            int live = tracker.getLiveHandles();
+            Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+            assertEquals(live + 1, tracker.getLiveHandles());
+            aug.close();
+            assertEquals(live, tracker.getLiveHandles());
+        } finally {
+            tracker.setEnabled(enabled);
+        }
+    }
+
     public void testUseAfterClose() {
-        Augeas aug = new Augeas();
+        Augeas aug = newAugeas("/", "", Augeas.NONE);
         aug.close();
         try {
             aug.match("/*");
@@ -74,7 +485,7 @@ public class AugeasTest extends TestCase {
 
     // TODO find some way to make this test more portable!!
     public void testSpan() {
-        Augeas aug = new Augeas();
+        Augeas aug = newAugeas("/", "", Augeas.NONE);
         aug.set("/augeas/span","enable");
         aug.rm("/files");
         aug.load();
@@ -91,18 +502,213 @@ public class AugeasTest extends TestCase {
 
     /* test enable span on load */
     public void testSpanLoad() {
-        Augeas aug = new Augeas(Augeas.AUG_ENABLE_SPAN);
+        Augeas aug = newAugeas("/", "", Augeas.AUG_ENABLE_SPAN);
         SpanResult got = aug.span("/files/etc/passwd[1]");
         assertEquals("/etc/passwd", got.getFilename());
     }
 
+    public void testSpans() throws IOException {
+        File root = createRoot("127.0.0.1 localhost\n10.0.0.1 other\n");
+        try {
+            Augeas aug = newAugeas(root.getPath(), null, Augeas.AUG_ENABLE_SPAN);
+            SpanTable spans = aug.spans("/files/etc/hosts/*/canonical");
+            assertEquals(2, spans.size());
+            assertEquals(1, spans.getFilenames().length);
+            assertEquals("/etc/hosts", spans.getFilename(1));
+            assertEquals("/files/etc/hosts/2/canonical", spans.getPath(1));
+            assertEquals(aug.span("/files/etc/hosts/2/canonical"), spans.getSpan(1));
+            assertTrue(spans.getValueStart(1) > spans.getValueEnd(0));
+            aug.close();
+        } finally {
+            deleteRoot(root);
+        }
+    }
+
+    public void testLoadPlan() throws IOException {
+        File root = createRoot("127.0.0.1 localhost\n");
+        try {
+            writeFile(new File(root, "etc/hosts.other"), "10.0.0.1 other\n");
+            LoadPlan plan = new LoadPlan().lens("Hosts.lns", "/etc/hosts*").exclude("*.other");
+            Augeas aug = plan.open(root.getPath(), null, Augeas.NONE);
+            assertEquals(Arrays.asList("/augeas/load/Hosts"), aug.match("/augeas/load/*"));
+            assertEquals("localhost", aug.get("/files/etc/hosts/1/canonical"));
+            assertFalse(aug.exists("/files/etc/hosts.other"));
+            assertTrue(aug.getLoadTimings().isEmpty());
+            aug.close();
+
+            aug = plan.setTimeLenses(true).open(root.getPath(), null, Augeas.NONE);
+            assertEquals(plan.getNames(), new ArrayList<String>(aug.getLoadTimings().keySet()));
+            aug.close();
+        } finally {
+            deleteRoot(root);
+        }
+    }
+
+    public void testDiff() {
+        Augeas golden = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        Augeas live = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        golden.set("/d/p/item", "1");
+        golden.set("/d/p/other", "2");
+        golden.set("/d/q", null);
+        golden.set("/d/r/x", "1");
+        golden.set("/d/r/y", "2");
+        live.set("/d/p/other", "3");
+        live.set("/d/q/item", "1");
+        live.set("/d/r/y", "2");
+        live.set("/d/r/x", "1");
+
+        assertTrue(AugeasDiff.compare(golden, golden, "/d").isEmpty());
+        List<AugeasDiff.Change> changes = AugeasDiff.compare(golden, live, "/d");
+        assertEquals(3, changes.size());
+        assertEquals(AugeasDiff.Kind.CHANGED, changes.get(0).getKind());
+        assertEquals("/d/p/other", changes.get(0).getNewPath());
+        assertEquals("3", changes.get(0).getNewValue());
+        assertEquals(AugeasDiff.Kind.MOVED, changes.get(1).getKind());
+        assertEquals("/d/r", changes.get(1).getOldPath().substring(0, 4));
+        assertEquals(AugeasDiff.Kind.MOVED, changes.get(2).getKind());
+        assertEquals("/d/p/item", changes.get(2).getOldPath());
+        assertEquals("/d/q/item", changes.get(2).getNewPath());
+
+        live.rm("/d/q");
+        changes = AugeasDiff.compare(golden.snapshot("/d"), live.snapshot("/d"));
+        assertEquals(AugeasDiff.Kind.REMOVED, changes.get(changes.size() - 1).getKind());
+        assertEquals("/d/q", changes.get(changes.size() - 1).getOldPath());
+
+        // Swapped lines are moves, and a line inserted at the top leaves
+        // the later ones alone
+        golden.set("/h/1/ipaddr", "10.0.0.1");
+        golden.set("/h/1/canonical", "a");
+        golden.set("/h/2/ipaddr", "10.0.0.2");
+        golden.set("/h/2/canonical", "b");
+        live.set("/h/1/ipaddr", "10.0.0.2");
+        live.set("/h/1/canonical", "c");
+        live.set("/h/2/ipaddr", "10.0.0.1");
+        live.set("/h/2/canonical", "a");
+        changes = AugeasDiff.compare(golden, live, "/h");
+        assertEquals(2, changes.size());
+        assertEquals(AugeasDiff.Kind.CHANGED, changes.get(0).getKind());
+        assertEquals("/h/1/canonical", changes.get(0).getNewPath());
+        assertEquals("c", changes.get(0).getNewValue());
+        assertEquals(AugeasDiff.Kind.MOVED, changes.get(1).getKind());
+        assertEquals("/h/1", changes.get(1).getOldPath());
+        assertEquals("/h/2", changes.get(1).getNewPath());
+
+        live.rm("/h");
+        live.set("/h/1/ipaddr", "10.0.0.3");
+        live.set("/h/2/ipaddr", "10.0.0.1");
+        live.set("/h/2/canonical", "a");
+        live.set("/h/3/ipaddr", "10.0.0.2");
+        live.set("/h/3/canonical", "b");
+        changes = AugeasDiff.compare(golden, live, "/h");
+        assertEquals(1, changes.size());
+        assertEquals(AugeasDiff.Kind.ADDED, changes.get(0).getKind());
+        assertEquals("/h/1", changes.get(0).getNewPath());
+        golden.close();
+        live.close();
+    }
+
+    public void testCursor() throws IOException {
+        File root = createRoot("127.0.0.1 localhost\n10.0.0.1 other alias\n");
+        try {
+            Augeas aug = newAugeas(root.getPath(), null, Augeas.NO_MODL_AUTOLOAD | Augeas.NO_LOAD);
+            aug.transform("Hosts.lns", "Hosts", Arrays.asList("/etc/hosts"), null);
+            aug.load();
+            Cursor cursor = aug.cursor("/files/etc/hosts");
+            assertEquals("hosts", cursor.getLabel());
+            assertEquals(2, cursor.getChildCount());
+            assertTrue(cursor.toFirstChild());
+            assertTrue(cursor.toNextSibling());
+            assertFalse(cursor.toNextSibling());
+            assertEquals("/files/etc/hosts/2", cursor.getPath());
+            List<Cursor.Node> page = cursor.getChildren(1, 10);
+            assertEquals(2, page.size());
+            assertEquals("canonical", page.get(0).getLabel());
+            assertEquals("other", page.get(0).getValue());
+            assertTrue(cursor.toChild(page.get(1).getPosition()));
+            assertEquals("alias", cursor.getValue());
+            assertFalse(cursor.toFirstChild());
+            assertTrue(cursor.toParent());
+            assertTrue(cursor.toParent());
+            assertFalse(cursor.toParent());
+            assertEquals(0, cursor.getDepth());
+
+            aug.set("/files/etc/hosts/1/canonical", "changed");
+            try {
+                cursor.getLabel();
+                fail("Cursor should be stale");
+            } catch (AugeasException e) {
+                // expected
+            }
+            cursor.close();
+
+            // Depth 0 holds all matches
+            cursor = aug.cursor("/files/etc/hosts/*/ipaddr");
+            assertEquals(2, cursor.getSiblingCount());
+            assertEquals("127.0.0.1", cursor.getValue());
+            assertTrue(cursor.toNextSibling());
+            assertEquals("10.0.0.1", cursor.getValue());
+            assertFalse(cursor.toParent());
+            cursor.close();
+            assertNull(aug.cursor("/files/etc/nothing"));
+            aug.close();
+        } finally {
+            deleteRoot(root);
+        }
+    }
+
+    /* nodes with and without span information in one expression */
+    public void testSpansMixed() throws IOException {
+        File root = createRoot("127.0.0.1 localhost\n10.0.0.1 other\n");
+        try {
+            Augeas aug = newAugeas(root.getPath(), null, Augeas.AUG_ENABLE_SPAN);
+            int count = aug.match("/files//*").size();
+            SpanTable spans = aug.spans("/files//*");
+            assertEquals(count, spans.size());
+            assertTrue(spans.getMissingCount() > 0);
+            assertTrue(spans.getMissingCount() < count);
+            assertEquals("/etc/hosts", spans.getFilename(spans.size() - 1));
+            aug.close();
+        } finally {
+            deleteRoot(root);
+        }
+    }
+
     /* test error code in the case span is disabled */
     public void testSpanError() {
-        Augeas aug = new Augeas();
+        Augeas aug = newAugeas("/", "", Augeas.NONE);
         aug.setRaiseExceptions(false);
         SpanResult span = aug.span("/files/etc/passwd");
         AugeasErrorCode lastError = aug.lastError();
         assertEquals(AugeasErrorCode.NO_SPAN, lastError);
     }
 
+    /**
+     * Create a temporary root with an etc/hosts file
+     */
+    protected static File createRoot(String hosts) throws IOException {
+        File root = File.createTempFile("augeas-test", "");
+        root.delete();
+        new File(root, "etc").mkdirs();
+        writeFile(new File(root, "etc/hosts"), hosts);
+        return root;
+    }
+
+    protected static void writeFile(File file, String content) throws IOException {
+        FileWriter out = new FileWriter(file);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+    }
+
+    protected static void deleteRoot(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRoot(child);
+            }
+        }
+        file.delete();
+    }
 }
@@ -0,0 +1,14 @@
+package net.augeas;
+
+import net.augeas.jna.AugDirect;
+
+/**
+ * Runs the Augeas tests against the direct mapping of the library.
+ */
+public class DirectAugeasTest extends AugeasTest {
+
+    @Override
+    protected Augeas newAugeas(String root, String loadpath, int flags) {
+        return new Augeas(root, loadpath, flags, AugDirect.INSTANCE);
+    }
+}
@@ -0,0 +1,52 @@
+package net.augeas;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class FleetLoaderTest extends TestCase {
+
+    public void testLoad() throws Exception {
+        List<File> files = new ArrayList<File>();
+        List<String> roots = new ArrayList<String>();
+        for (int i = 0; i < 5; i++) {
+            File root = AugeasTest.createRoot("127.0.0." + i + " host" + i + "\n");
+            files.add(root);
+            roots.add(root.getPath());
+        }
+        FleetLoader loader = new FleetLoader(2, null, 0);
+        try {
+            Map<String, String> hosts = new HashMap<String, String>();
+            int failures = 0;
+            FleetLoader.Results<String> results = loader.load(roots, new AugeasCallback<String>() {
+                public String call(Augeas aug) {
+                    String host = aug.get("/files/etc/hosts/1/canonical");
+                    if ("host4".equals(host)) {
+                        throw new AugeasException("Rejected " + host);
+                    }
+                    return host;
+                }
+            });
+            while (results.hasNext()) {
+                FleetLoader.Result<String> result = results.next();
+                if (result.isSuccess()) {
+                    hosts.put(result.getRoot(), result.getValue());
+                } else {
+                    failures++;
+                }
+            }
+            assertEquals(4, hosts.size());
+            assertEquals("host3", hosts.get(files.get(3).getPath()));
+            assertEquals(1, failures);
+        } finally {
+            loader.close();
+            for (File root : files) {
+                AugeasTest.deleteRoot(root);
+            }
+        }
+    }
+}
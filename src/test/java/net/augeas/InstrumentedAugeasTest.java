@@ -0,0 +1,76 @@
+package net.augeas;
+
+import net.augeas.jna.Aug;
+
+/**
+ * Runs the Augeas tests through the instrumentation layer, and checks what
+ * it records.
+ */
+public class InstrumentedAugeasTest extends AugeasTest {
+
+    private final AugeasMetrics metrics = new AugeasMetrics();
+
+    @Override
+    protected Augeas newAugeas(String root, String loadpath, int flags) {
+        return new Augeas(root, loadpath, flags, new InstrumentedAug(Aug.INSTANCE, metrics));
+    }
+
+    public void testMetrics() {
+        metrics.reset();
+        final int[] failures = new int[1];
+        AugeasCallListener listener = new AugeasCallListener() {
+            public void callCompleted(AugeasMetrics.Operation operation, long nanos,
+                                      boolean failed, AugeasErrorCode error) {
+                if (failed) {
+                    failures[0]++;
+                }
+            }
+        };
+        metrics.addListener(listener);
+
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        aug.set("/a/b", "value");
+        aug.get("/a/b");
+        aug.get("/a/b");
+        aug.setRaiseExceptions(false);
+        aug.get("SOME INVALID GOOFY PATH");
+        aug.close();
+        metrics.removeListener(listener);
+
+        assertEquals(1, metrics.getCallCount(AugeasMetrics.Operation.INIT));
+        assertEquals(1, metrics.getCallCount(AugeasMetrics.Operation.SET));
+        assertEquals(3, metrics.getCallCount("aug_get"));
+        assertEquals(1, metrics.getFailureCount(AugeasMetrics.Operation.GET, AugeasErrorCode.PATH_ERROR));
+        assertEquals(1, metrics.getTotalFailures());
+        assertEquals(1, failures[0]);
+        assertTrue(metrics.getBytesMarshalled() > 0);
+        assertTrue(metrics.getLatencyPercentileNanos(AugeasMetrics.Operation.GET, 99)
+                >= metrics.getLatencyPercentileNanos(AugeasMetrics.Operation.GET, 50));
+    }
+
+    public void testErrorCalls() {
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        metrics.reset();
+        aug.tryExists("SOME INVALID GOOFY PATH");
+        assertEquals(0, metrics.getCallCount(AugeasMetrics.Operation.ERROR));
+        try {
+            aug.exists("SOME INVALID GOOFY PATH");
+            fail("Invalid path should raise");
+        } catch (AugeasException e) {
+            // code, message, minor message and details, each read once
+            assertEquals(4, metrics.getCallCount(AugeasMetrics.Operation.ERROR));
+        }
+        aug.close();
+    }
+
+    public void testRegister() throws Exception {
+        metrics.register("test");
+        try {
+            javax.management.ObjectName name =
+                    new javax.management.ObjectName("net.augeas:type=AugeasMetrics,name=\"test\"");
+            assertTrue(java.lang.management.ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        } finally {
+            metrics.unregister();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package net.augeas;
+
+/**
+ * Runs the Augeas tests against a worker process, and checks that a
+ * worker which dies is replaced.
+ */
+public class RemoteAugeasTest extends AugeasTest {
+
+    private static final RemoteAug REMOTE = new RemoteAug();
+
+    @Override
+    protected Augeas newAugeas(String root, String loadpath, int flags) {
+        return new Augeas(root, loadpath, flags, REMOTE);
+    }
+
+    public void testRestart() throws Exception {
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        aug.set("/a/b", "value");
+        int restarts = REMOTE.getRestarts();
+        REMOTE.getWorker().destroyForcibly().waitFor();
+        try {
+            aug.get("/a/b");
+            fail("Handle should be gone with its worker");
+        } catch (AugeasException e) {
+            // expected
+        }
+        aug.close();
+
+        aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        assertNull(aug.get("/a/b"));
+        assertEquals(restarts + 1, REMOTE.getRestarts());
+        aug.close();
+    }
+
+    public void testInterruptedCaller() {
+        Augeas aug = newAugeas("/dev/null", null, Augeas.NO_LOAD);
+        aug.set("/a/b", "value");
+        int restarts = REMOTE.getRestarts();
+        Thread.currentThread().interrupt();
+        try {
+            assertEquals("value", aug.get("/a/b"));
+        } finally {
+            assertTrue("interrupt status is kept", Thread.interrupted());
+        }
+        assertEquals("value", aug.get("/a/b"));
+        assertEquals(restarts, REMOTE.getRestarts());
+        aug.close();
+    }
+}